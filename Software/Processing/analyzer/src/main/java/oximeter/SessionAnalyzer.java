@@ -0,0 +1,296 @@
+package oximeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Runs recorded sessions through the sketch's DSP without the GUI and writes
+ * a SpO2 / heart rate trend for each one (<name>.trend.csv, one row per bin).
+ *
+ * All files go into one fork/join pool. A session is cut into segments that
+ * are analysed in parallel; each segment first runs over the overlap before
+ * its start so filters, the SpO2 window and the beat detector have settled by
+ * the time it starts counting, then its bins are added into the session's
+ * trend. Segments share nothing but the read-only mapped recording, so the
+ * work spreads over however many cores the pool has.
+ *
+ *   java -jar session-analyzer.jar [options] file.pcox|directory ...
+ */
+public class SessionAnalyzer
+{
+  public int threads = Runtime.getRuntime().availableProcessors();
+  public float segmentSeconds = 600;
+  public float overlapSeconds = 30;
+  public float binSeconds = 60;
+  public float lowSpo2 = 90;           // time under this SpO2 is reported per bin
+
+  // DSP settings, the sketch's defaults
+  public int window = 400;
+  public int filterOrder = 2;
+  public float filterLow = 0.5f, filterHigh = 5;
+  public float notchFreq = 50;
+
+  public File outDir;                  // null writes each trend next to its recording
+
+  private static final int BATCH = 4096;
+
+  public static void main(String[] args)
+  {
+    SessionAnalyzer analyzer = new SessionAnalyzer();
+    List<File> files = new ArrayList<File>();
+    try
+    {
+      for (int i = 0; i < args.length; i++)
+      {
+        String a = args[i];
+        if (!a.startsWith("-"))
+          addFiles(new File(a), files);
+        else if (i + 1 == args.length)
+          usage("missing value for " + a);
+        else if (a.equals("-threads"))
+          analyzer.threads = Integer.parseInt(args[++i]);
+        else if (a.equals("-segment"))
+          analyzer.segmentSeconds = Float.parseFloat(args[++i]);
+        else if (a.equals("-overlap"))
+          analyzer.overlapSeconds = Float.parseFloat(args[++i]);
+        else if (a.equals("-bin"))
+          analyzer.binSeconds = Float.parseFloat(args[++i]);
+        else if (a.equals("-low"))
+          analyzer.lowSpo2 = Float.parseFloat(args[++i]);
+        else if (a.equals("-notch"))
+          analyzer.notchFreq = Float.parseFloat(args[++i]);
+        else if (a.equals("-out"))
+          analyzer.outDir = new File(args[++i]);
+        else
+          usage("unknown option " + a);
+      }
+    }
+    catch (NumberFormatException e)
+    {
+      usage("not a number: " + e.getMessage());
+    }
+    if (files.isEmpty())
+      usage("no .pcox recordings given");
+    if (analyzer.outDir != null && !analyzer.outDir.isDirectory() && !analyzer.outDir.mkdirs())
+      usage("cannot create " + analyzer.outDir);
+
+    List<Result> results = analyzer.analyze(files);
+    int failed = 0;
+    for (Result r : results)
+    {
+      if (r.error != null)
+        failed++;
+    }
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+  private static void usage(String problem)
+  {
+    System.err.println(problem);
+    System.err.println("usage: session-analyzer [-threads n] [-segment s] [-overlap s] [-bin s] [-low %] [-notch hz] [-out dir] file.pcox|dir ...");
+    System.exit(2);
+  }
+
+  // a directory contributes the .pcox files directly in it
+  private static void addFiles(File f, List<File> files)
+  {
+    if (f.isDirectory())
+    {
+      File[] list = f.listFiles();
+      if (list == null)
+        return;
+      Arrays.sort(list);
+      for (File g : list)
+      {
+        if (g.isFile() && g.getName().endsWith(".pcox"))
+          files.add(g);
+      }
+    }
+    else
+      files.add(f);
+  }
+
+  /************** Batch **********************/
+
+  public static class Result
+  {
+    public final File file;
+    public File trendFile;
+    public SessionTrend trend;
+    public float sampleRate;
+    public String error;
+
+    Result(File file)
+    {
+      this.file = file;
+    }
+  }
+
+  // Analyses every file, printing a line per session as it finishes and a total at the end
+  public List<Result> analyze(List<File> files)
+  {
+    long start = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    List<SessionTask> tasks = new ArrayList<SessionTask>();
+    for (File f : files)
+      tasks.add(new SessionTask(f));
+    for (SessionTask t : tasks)
+      pool.execute(t);
+
+    System.out.println("session                          hours  SpO2 mean  min bin  <" + SessionTrend.fmt(lowSpo2) + "% min  BPM mean  min  max");
+    List<Result> results = new ArrayList<Result>();
+    long samples = 0;
+    for (SessionTask t : tasks)
+    {
+      Result r = t.join();
+      results.add(r);
+      if (r.error != null)
+      {
+        System.out.println(r.file.getName() + ": " + r.error);
+        continue;
+      }
+      SessionTrend s = r.trend;
+      samples += s.samples();
+      System.out.println(String.format(Locale.ROOT, "%-32s %5.2f  %9s  %7s  %8s  %8s  %3s  %3s",
+        r.file.getName(), s.samples() / r.sampleRate / 3600, SessionTrend.fmt(s.meanSpo2()), SessionTrend.fmt(s.minBinSpo2()),
+        SessionTrend.fmt(s.lowSamples() / r.sampleRate / 60), SessionTrend.fmt(s.meanBpm()),
+        SessionTrend.fmt(Math.rint(s.minBinBpm())), SessionTrend.fmt(Math.rint(s.maxBinBpm()))));
+    }
+    pool.shutdown();
+
+    double seconds = (System.nanoTime() - start) * 1e-9;
+    System.out.println(String.format(Locale.ROOT, "%d sessions, %d samples in %.2f s on %d threads (%.0f samples/s)",
+      files.size(), samples, seconds, threads, samples / seconds));
+    return results;
+  }
+
+  /************** Tasks **********************/
+
+  // One recording: splits it into segments, merges their trends and writes the CSV
+  class SessionTask extends RecursiveTask<Result>
+  {
+    final File file;
+
+    SessionTask(File file)
+    {
+      this.file = file;
+    }
+
+    protected Result compute()
+    {
+      Result result = new Result(file);
+      BinaryRecording.Reader reader = null;
+      try
+      {
+        reader = new BinaryRecording.Reader(file);
+        long n = reader.sampleCount();
+        if (n == 0)
+          throw new IOException("no samples");
+        float rate = reader.sampleRate;
+        long bin = Math.max(1, Math.round(binSeconds * rate));
+        // whole bins per segment, so segments don't share bins
+        long segment = Math.max(1, Math.round(segmentSeconds * rate / bin)) * bin;
+        long overlap = Math.round(overlapSeconds * rate);
+
+        List<SegmentTask> segments = new ArrayList<SegmentTask>();
+        for (long from = 0; from < n; from += segment)
+          segments.add(new SegmentTask(reader, from, Math.min(n, from + segment), overlap, bin));
+        ForkJoinTask.invokeAll(segments);
+
+        SessionTrend trend = SessionTrend.covering(0, n, bin);
+        for (SegmentTask s : segments)
+          trend.add(s.join());
+
+        File dir = outDir != null ? outDir : file.getAbsoluteFile().getParentFile();
+        String name = file.getName();
+        if (name.endsWith(".pcox"))
+          name = name.substring(0, name.length() - 5);
+        result.trendFile = new File(dir, name + ".trend.csv");
+        trend.write(result.trendFile, rate, reader.startMillis, lowSpo2);
+        result.trend = trend;
+        result.sampleRate = rate;
+      }
+      catch (IOException e)
+      {
+        result.error = e.getMessage();
+      }
+      finally
+      {
+        if (reader != null)
+        {
+          try
+          {
+            reader.close();
+          }
+          catch (IOException e)
+          {
+          }
+        }
+      }
+      return result;
+    }
+  }
+
+  // Samples from..to-1 of one recording, run from from-overlap so the DSP has settled
+  class SegmentTask extends RecursiveTask<SessionTrend>
+  {
+    final BinaryRecording.Reader reader;
+    final long from, to, overlap, bin;
+
+    SegmentTask(BinaryRecording.Reader reader, long from, long to, long overlap, long bin)
+    {
+      this.reader = reader;
+      this.from = from;
+      this.to = to;
+      this.overlap = overlap;
+      this.bin = bin;
+    }
+
+    protected SessionTrend compute()
+    {
+      float rate = reader.sampleRate;
+      SignalProcessor p = new SignalProcessor(window, rate);
+      p.setFilters(new BiquadFilterBank(2, rate, filterOrder, filterLow, filterHigh, notchFreq));
+      SessionTrend trend = SessionTrend.covering(from, to, bin);
+
+      long[] stamps = new long[BATCH];
+      int[] red = new int[BATCH];
+      int[] ir = new int[BATCH];
+      int seenSpo2 = 0, seenBeats = 0;
+      boolean valid = false;
+      for (long index = Math.max(0, from - overlap); index < to; )
+      {
+        int count = reader.read(index, stamps, red, ir, (int) Math.min(BATCH, to - index));
+        for (int k = 0; k < count; k++, index++)
+        {
+          p.process(stamps[k], red[k], ir[k]);
+          boolean counting = index >= from;
+          if (p.spo2Count != seenSpo2)
+          {
+            seenSpo2 = p.spo2Count;
+            // no pulse (or no finger) gives ratios outside what the formula means anything for
+            valid = p.spo2 > 0 && p.spo2 <= 100;
+            if (valid && counting)
+              trend.spo2(index, p.spo2);
+          }
+          if (p.beats != seenBeats)
+          {
+            seenBeats = p.beats;
+            if (p.bpm > 0 && counting)
+              trend.heartRate(index, p.bpm);
+          }
+          if (counting)
+            trend.sample(index, valid && p.spo2 < lowSpo2);
+        }
+      }
+      return trend;
+    }
+  }
+}
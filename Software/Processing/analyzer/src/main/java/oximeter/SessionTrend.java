@@ -0,0 +1,219 @@
+package oximeter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/*
+ * SpO2 and heart rate of a session in fixed time bins. Each segment of a
+ * session fills a trend covering its own bins, and the segments are then
+ * added into the session's trend; bins are counted from the start of the
+ * session, so a bin split between two segments adds up to what one pass would
+ * have given.
+ */
+public class SessionTrend
+{
+  public final long firstBin;
+  public final int bins;
+  public final long binSamples;
+
+  final long[] samples;
+  final long[] lowSamples;          // samples while the last SpO2 estimate was under the threshold
+  final int[] spo2Count, hrCount;
+  final double[] spo2Sum, hrSum;
+  final float[] spo2Min, spo2Max, hrMin, hrMax;
+
+  public SessionTrend(long firstBin, int bins, long binSamples)
+  {
+    this.firstBin = firstBin;
+    this.bins = bins;
+    this.binSamples = binSamples;
+    samples = new long[bins];
+    lowSamples = new long[bins];
+    spo2Count = new int[bins];
+    hrCount = new int[bins];
+    spo2Sum = new double[bins];
+    hrSum = new double[bins];
+    spo2Min = new float[bins];
+    spo2Max = new float[bins];
+    hrMin = new float[bins];
+    hrMax = new float[bins];
+    for (int b = 0; b < bins; b++)
+    {
+      spo2Min[b] = hrMin[b] = Float.POSITIVE_INFINITY;
+      spo2Max[b] = hrMax[b] = Float.NEGATIVE_INFINITY;
+    }
+  }
+
+  // Trend covering samples from..to-1
+  public static SessionTrend covering(long from, long to, long binSamples)
+  {
+    long first = from / binSamples;
+    return new SessionTrend(first, (int) ((to - 1) / binSamples - first + 1), binSamples);
+  }
+
+  void sample(long index, boolean low)
+  {
+    int b = (int) (index / binSamples - firstBin);
+    samples[b]++;
+    if (low)
+      lowSamples[b]++;
+  }
+
+  void spo2(long index, float v)
+  {
+    int b = (int) (index / binSamples - firstBin);
+    spo2Count[b]++;
+    spo2Sum[b] += v;
+    spo2Min[b] = Math.min(spo2Min[b], v);
+    spo2Max[b] = Math.max(spo2Max[b], v);
+  }
+
+  void heartRate(long index, float bpm)
+  {
+    int b = (int) (index / binSamples - firstBin);
+    hrCount[b]++;
+    hrSum[b] += bpm;
+    hrMin[b] = Math.min(hrMin[b], bpm);
+    hrMax[b] = Math.max(hrMax[b], bpm);
+  }
+
+  // Adds a segment's bins into this trend
+  public void add(SessionTrend part)
+  {
+    for (int j = 0; j < part.bins; j++)
+    {
+      int b = (int) (part.firstBin + j - firstBin);
+      samples[b] += part.samples[j];
+      lowSamples[b] += part.lowSamples[j];
+      spo2Count[b] += part.spo2Count[j];
+      spo2Sum[b] += part.spo2Sum[j];
+      spo2Min[b] = Math.min(spo2Min[b], part.spo2Min[j]);
+      spo2Max[b] = Math.max(spo2Max[b], part.spo2Max[j]);
+      hrCount[b] += part.hrCount[j];
+      hrSum[b] += part.hrSum[j];
+      hrMin[b] = Math.min(hrMin[b], part.hrMin[j]);
+      hrMax[b] = Math.max(hrMax[b], part.hrMax[j]);
+    }
+  }
+
+  /************** Whole Session **********************/
+
+  public long samples()
+  {
+    long n = 0;
+    for (int b = 0; b < bins; b++)
+      n += samples[b];
+    return n;
+  }
+
+  public long lowSamples()
+  {
+    long n = 0;
+    for (int b = 0; b < bins; b++)
+      n += lowSamples[b];
+    return n;
+  }
+
+  public double meanSpo2()
+  {
+    return mean(spo2Sum, spo2Count);
+  }
+
+  public double meanBpm()
+  {
+    return mean(hrSum, hrCount);
+  }
+
+  // lowest / highest bin mean, so a single bad estimate doesn't count as the session's minimum
+  public double minBinSpo2()
+  {
+    return extremeBin(spo2Sum, spo2Count, true);
+  }
+
+  public double minBinBpm()
+  {
+    return extremeBin(hrSum, hrCount, true);
+  }
+
+  public double maxBinBpm()
+  {
+    return extremeBin(hrSum, hrCount, false);
+  }
+
+  private static double mean(double[] sum, int[] count)
+  {
+    double s = 0;
+    long n = 0;
+    for (int b = 0; b < sum.length; b++)
+    {
+      s += sum[b];
+      n += count[b];
+    }
+    return n == 0 ? Double.NaN : s / n;
+  }
+
+  private static double extremeBin(double[] sum, int[] count, boolean lowest)
+  {
+    double best = Double.NaN;
+    for (int b = 0; b < sum.length; b++)
+    {
+      if (count[b] == 0)
+        continue;
+      double m = sum[b] / count[b];
+      if (Double.isNaN(best) || (lowest ? m < best : m > best))
+        best = m;
+    }
+    return best;
+  }
+
+  /************** CSV **********************/
+
+  public void write(File file, float sampleRate, long startMillis, float lowSpo2) throws IOException
+  {
+    SimpleDateFormat clock = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    String low = "below_" + fmt(lowSpo2) + "_s";
+    PrintWriter out = new PrintWriter(file, "UTF-8");
+    try
+    {
+      out.println("time_s,clock,samples,spo2_mean,spo2_min,spo2_max,spo2_estimates,bpm_mean,bpm_min,bpm_max,beats," + low);
+      for (int b = 0; b < bins; b++)
+      {
+        double t = (firstBin + b) * binSamples / (double) sampleRate;
+        StringBuilder row = new StringBuilder();
+        row.append(fmt(t)).append(',')
+          .append(clock.format(new Date(startMillis + Math.round(t * 1000)))).append(',')
+          .append(samples[b]).append(',');
+        stats(row, spo2Sum[b], spo2Count[b], spo2Min[b], spo2Max[b]);
+        stats(row, hrSum[b], hrCount[b], hrMin[b], hrMax[b]);
+        row.append(fmt(lowSamples[b] / (double) sampleRate));
+        out.println(row);
+      }
+    }
+    finally
+    {
+      out.close();
+    }
+    if (out.checkError())
+      throw new IOException("could not write " + file);
+  }
+
+  private static void stats(StringBuilder row, double sum, int count, float min, float max)
+  {
+    if (count > 0)
+      row.append(fmt(sum / count)).append(',').append(fmt(min)).append(',').append(fmt(max)).append(',');
+    else
+      row.append(",,,");
+    row.append(count).append(',');
+  }
+
+  static String fmt(double v)
+  {
+    if (Double.isNaN(v))
+      return "-";
+    return v == Math.rint(v) ? Long.toString((long) v) : String.format(Locale.ROOT, "%.1f", v);
+  }
+}
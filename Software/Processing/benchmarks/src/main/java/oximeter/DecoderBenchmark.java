@@ -0,0 +1,67 @@
+package oximeter;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * CES packet decoding, ns per sample (one 15 byte frame). The frames are fed
+ * in chunks the size a serial read hands over; chunk 1 is the byte at a time
+ * path the old serialEvent() took.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecoderBenchmark
+{
+  @Param({ "1", "64", "4096" })
+  public int chunk;
+
+  private Samples samples;
+  private CesPacketDecoder decoder;
+  private Blackhole sink;
+
+  @Setup
+  public void setup(Blackhole bh) throws Exception
+  {
+    samples = new Samples();
+    sink = bh;
+    decoder = new CesPacketDecoder(64, new CesPacketDecoder.PacketListener()
+    {
+      public void onPacket(int pktType, int[] words, int wordCount)
+      {
+        sink.consume(words[0]);
+        sink.consume(words[1]);
+      }
+    });
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Samples.COUNT)
+  public void decode()
+  {
+    byte[] frames = samples.frames;
+    if (chunk == 1)
+    {
+      for (int i = 0; i < frames.length; i++)
+        decoder.process(frames[i] & 0xFF);
+      return;
+    }
+    for (int i = 0; i < frames.length; i += chunk)
+      decoder.process(frames, i, Math.min(chunk, frames.length - i));
+  }
+}
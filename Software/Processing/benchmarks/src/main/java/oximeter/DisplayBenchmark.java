@@ -0,0 +1,91 @@
+package oximeter;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The display side of a sample: the M4 decimation LineGraph runs before
+ * drawing (ns per redraw, for the sketch's 400 sample window and for a
+ * long span) and the append into the history pyramid (ns per sample).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DisplayBenchmark
+{
+  static final int WIDTH = 880;       // graph width in the 1000 wide window
+
+  @State(Scope.Thread)
+  public static class Trace
+  {
+    @Param({ "400", "65536" })
+    public int points;
+
+    float[] x, y;
+    ColumnDecimator decimator = new ColumnDecimator(WIDTH);
+
+    @Setup
+    public void setup() throws Exception
+    {
+      Samples samples = new Samples();
+      x = new float[points];
+      y = new float[points];
+      for (int i = 0; i < points; i++)
+      {
+        x[i] = i;
+        y[i] = samples.irVolts[i];
+      }
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class History
+  {
+    float[] y;
+    MinMaxPyramid pyramid;
+
+    @Setup(Level.Trial)
+    public void load() throws Exception
+    {
+      y = new Samples().irVolts;
+    }
+
+    // a fresh pyramid every call, or the history would grow for the whole run
+    @Setup(Level.Invocation)
+    public void reset()
+    {
+      pyramid = new MinMaxPyramid();
+    }
+  }
+
+  @Benchmark
+  public int decimate(Trace t)
+  {
+    return t.decimator.decimate(t.x, t.y, 0, t.points, 0, t.points - 1, WIDTH);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Samples.COUNT)
+  public long pyramidAppend(History h)
+  {
+    float[] y = h.y;
+    MinMaxPyramid pyramid = h.pyramid;
+    for (int i = 0; i < y.length; i++)
+      pyramid.append(y[i]);
+    return pyramid.size();
+  }
+}
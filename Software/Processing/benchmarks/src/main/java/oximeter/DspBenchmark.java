@@ -0,0 +1,123 @@
+package oximeter;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * The per sample DSP stages, ns per sample, each on its own and then all of
+ * them together as SignalProcessor.process() runs them. Settings are the
+ * sketch's defaults (400 sample window, 2nd order 0.5-5 Hz band-pass, 50 Hz
+ * notch). Stages keep their state across invocations like they do on a live
+ * stream; stamps keep moving forward so the beat detector never sees time go
+ * back.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DspBenchmark
+{
+  static final int SIZE = 400;
+
+  private Samples samples;
+  private RunningStats stats;
+  private SpO2Estimator spo2;
+  private BiquadFilterBank filters;
+  private HeartRateDetector heartRate;
+  private SpectralEstimator spectrum;
+  private SignalProcessor processor;
+  private long shift;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    samples = new Samples();
+    float rate = samples.sampleRate;
+    stats = new RunningStats(SIZE);
+    spo2 = new SpO2Estimator(SIZE, SIZE / 16);
+    filters = new BiquadFilterBank(2, rate, 2, 0.5f, 5, 50);
+    heartRate = new HeartRateDetector(rate);
+    spectrum = new SpectralEstimator(rate);
+    processor = new SignalProcessor(SIZE, rate);
+    processor.setFilters(new BiquadFilterBank(2, rate, 2, 0.5f, 5, 50));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Samples.COUNT)
+  public double runningStats()
+  {
+    float[] x = samples.irVolts;
+    for (int i = 0; i < x.length; i++)
+      stats.push(x[i]);
+    return stats.rms() + stats.min() + stats.max();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Samples.COUNT)
+  public float spo2Estimator()
+  {
+    float[] r = samples.redVolts, x = samples.irVolts;
+    for (int i = 0; i < x.length; i++)
+      spo2.push(r[i], x[i]);
+    return spo2.spo2;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Samples.COUNT)
+  public float spectralEstimator()
+  {
+    float[] r = samples.redVolts, x = samples.irVolts;
+    for (int i = 0; i < x.length; i++)
+      spectrum.push(r[i], x[i]);
+    return spectrum.bpm + spectrum.spo2;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Samples.COUNT)
+  public void filterBank(Blackhole bh)
+  {
+    float[] r = samples.redVolts, x = samples.irVolts;
+    for (int i = 0; i < x.length; i++)
+    {
+      bh.consume(filters.process(0, r[i]));
+      bh.consume(filters.process(1, x[i]));
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Samples.COUNT)
+  public float heartRateDetector()
+  {
+    long[] t = samples.nanos;
+    int[] x = samples.ir;
+    for (int i = 0; i < x.length; i++)
+      heartRate.push(t[i] + shift, x[i]);
+    shift += samples.span;
+    return heartRate.bpm;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(Samples.COUNT)
+  public float signalProcessor()
+  {
+    long[] t = samples.nanos;
+    int[] r = samples.red, x = samples.ir;
+    for (int i = 0; i < x.length; i++)
+      processor.process(t[i] + shift, r[i], x[i]);
+    shift += samples.span;
+    return processor.value2 + processor.spo2 + processor.bpm;
+  }
+}
@@ -0,0 +1,100 @@
+package oximeter;
+
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * The input every benchmark runs on: the session given with
+ * -Doximeter.recording=file.pcox, otherwise the synthetic generator polled as
+ * fast as it goes. Either way COUNT samples are kept (a short recording is
+ * repeated), along with the same samples as CES frames and as the volts the
+ * DSP works on.
+ */
+public final class Samples
+{
+  public static final int COUNT = 1 << 16;
+  public static final int FRAME_SIZE = 15;
+
+  public final String origin;
+  public final float sampleRate;
+  public final long[] nanos = new long[COUNT];
+  public final int[] red = new int[COUNT];
+  public final int[] ir = new int[COUNT];
+  public final float[] redVolts = new float[COUNT];
+  public final float[] irVolts = new float[COUNT];
+  public final byte[] frames = new byte[COUNT * FRAME_SIZE];
+
+  // nanos[COUNT-1] - nanos[0] plus one sample period, to keep time running forward on repeats
+  public final long span;
+
+  private int filled;
+
+  public Samples() throws IOException
+  {
+    String path = System.getProperty("oximeter.recording");
+    if (path != null && path.length() > 0)
+    {
+      BinaryRecording.Reader reader = new BinaryRecording.Reader(new File(path));
+      try
+      {
+        long n = reader.sampleCount();
+        if (n == 0)
+          throw new IOException(path + " has no samples");
+        for (; filled < COUNT; filled++)
+        {
+          long i = filled % n;
+          nanos[filled] = reader.stamp(i);
+          red[filled] = reader.red(i);
+          ir[filled] = reader.ir(i);
+        }
+        sampleRate = reader.sampleRate;
+        origin = path;
+      }
+      finally
+      {
+        reader.close();
+      }
+    }
+    else
+    {
+      SyntheticPpgSource source = new SyntheticPpgSource(100, 72, 97, 0.05f);
+      source.realtime = false;
+      source.open();
+      SampleSource.Sink sink = new SampleSource.Sink()
+      {
+        public void onSample(long stamp, int r, int i)
+        {
+          if (filled < COUNT)
+          {
+            nanos[filled] = stamp;
+            red[filled] = r;
+            ir[filled] = i;
+            filled++;
+          }
+        }
+      };
+      while (filled < COUNT)
+        source.poll(sink);
+      source.close();
+      sampleRate = source.sampleRate;
+      origin = source.describe();
+    }
+
+    // repeats of a short recording restart its stamps, lay them out one after the other
+    long period = (long) (1e9 / sampleRate);
+    for (int i = 1; i < COUNT; i++)
+    {
+      if (nanos[i] <= nanos[i - 1])
+        nanos[i] = nanos[i - 1] + period;
+    }
+    span = nanos[COUNT - 1] - nanos[0] + period;
+
+    int pos = 0;
+    for (int i = 0; i < COUNT; i++)
+    {
+      redVolts[i] = (float) (red[i] * SignalProcessor.COUNTS_TO_VOLTS);
+      irVolts[i] = (float) (ir[i] * SignalProcessor.COUNTS_TO_VOLTS);
+      pos = SyntheticPpgSource.encode(red[i], ir[i], frames, pos);
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Polls a pipeline's SampleSource on its own thread, so acquisition never
+ * runs on the animation thread.
+ */
+public class AcquisitionThread extends Thread
+{
+  private final SamplePipeline pipeline;
+  private volatile boolean running = true;
+
+  public AcquisitionThread(SamplePipeline pipeline)
+  {
+    super("acquisition " + pipeline.source.describe());
+    this.pipeline = pipeline;
+    setDaemon(true);
+  }
+
+  public void run()
+  {
+    try
+    {
+      while (running && !pipeline.ended())
+      {
+        if (pipeline.pollSource() == 0)
+          Thread.sleep(1);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // shutdown
+    }
+    finally
+    {
+      pipeline.source.close();
+    }
+  }
+
+  public SampleSource source()
+  {
+    return pipeline.source;
+  }
+
+  public void shutdown()
+  {
+    running = false;
+    interrupt();
+  }
+}
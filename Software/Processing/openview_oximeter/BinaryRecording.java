@@ -0,0 +1,238 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Fixed record binary format for raw RED/IR sessions.
+ *
+ *   header (64 bytes, little-endian)
+ *     0  magic "PCOX"
+ *     4  version          short
+ *     6  header size      short
+ *     8  channel count    short
+ *     10 record size      short
+ *     12 sample rate      float   (samples/s as configured on the board)
+ *     16 start time       long    (System.currentTimeMillis() at open)
+ *     24 start nanos      long    (System.nanoTime() at open, base for record stamps)
+ *     32 channel names    4 x 8 bytes ASCII, zero padded
+ *
+ *   records (16 bytes each)
+ *     0  host timestamp   long    (System.nanoTime())
+ *     8  RED count        int
+ *     12 IR count         int
+ *
+ * Records have a fixed size, so sample n is at HEADER_SIZE + n * RECORD_SIZE
+ * and the reader can jump anywhere in a file without parsing it.
+ */
+public class BinaryRecording
+{
+  public static final int MAGIC = 0x584F4350;          // "PCOX" read little-endian
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 64;
+  public static final int RECORD_SIZE = 16;
+  public static final int CHANNELS = 2;
+  public static final String[] CHANNEL_NAMES = { "RED", "IR" };
+
+  private static final int NAME_SIZE = 8;
+  private static final int NAMES_OFFSET = 32;
+
+  /*
+   * Writer side, plugs into SessionLogger so it gets the same background
+   * batching and rotation as the text log. Channel values are raw counts.
+   */
+  public static class Writer implements SessionLogger.Format
+  {
+    private final float sampleRate;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private long bytes;
+
+    public Writer(float sampleRate)
+    {
+      this.sampleRate = sampleRate;
+    }
+
+    public void open(File f) throws IOException
+    {
+      file = new RandomAccessFile(f, "rw");
+      file.setLength(0);
+      channel = file.getChannel();
+
+      buffer.clear();
+      buffer.putInt(MAGIC);
+      buffer.putShort((short) VERSION);
+      buffer.putShort((short) HEADER_SIZE);
+      buffer.putShort((short) CHANNELS);
+      buffer.putShort((short) RECORD_SIZE);
+      buffer.putFloat(sampleRate);
+      buffer.putLong(System.currentTimeMillis());
+      buffer.putLong(System.nanoTime());
+      for (int c = 0; c < CHANNEL_NAMES.length; c++)
+      {
+        String name = CHANNEL_NAMES[c];
+        for (int i = 0; i < NAME_SIZE; i++)
+          buffer.put(i < name.length() ? (byte) name.charAt(i) : 0);
+      }
+      while (buffer.position() < HEADER_SIZE)
+        buffer.put((byte) 0);
+      bytes = 0;
+      flush();
+    }
+
+    public void write(long stamp, int red, int ir) throws IOException
+    {
+      if (buffer.remaining() < RECORD_SIZE)
+        flush();
+      buffer.putLong(stamp);
+      buffer.putInt(red);
+      buffer.putInt(ir);
+    }
+
+    public void flush() throws IOException
+    {
+      buffer.flip();
+      while (buffer.hasRemaining())
+        bytes += channel.write(buffer);
+      buffer.clear();
+    }
+
+    public void close() throws IOException
+    {
+      flush();
+      file.close();
+    }
+
+    public long bytesWritten()
+    {
+      return bytes + buffer.position();
+    }
+  }
+
+  /*
+   * Memory mapped reader. Opening only reads the header, records are paged in
+   * by the OS as they are touched. Files larger than 2 GB are mapped as
+   * several segments that each hold a whole number of records.
+   */
+  public static class Reader
+  {
+    private static final long SEGMENT_RECORDS = (Integer.MAX_VALUE / RECORD_SIZE) & ~0xFFFL;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer[] segments;
+    private final long sampleCount;
+
+    public final float sampleRate;
+    public final long startMillis;
+    public final long startNanos;
+    public final int channels;
+    public final String[] channelNames;
+
+    public Reader(File f) throws IOException
+    {
+      file = new RandomAccessFile(f, "r");
+      FileChannel channel = file.getChannel();
+      long size = channel.size();
+      if (size < HEADER_SIZE)
+        throw new IOException(f.getName()+" is not a recording (too short)");
+
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      if (header.getInt(0) != MAGIC)
+        throw new IOException(f.getName()+" is not a recording (bad magic)");
+      if (header.getShort(4) > VERSION)
+        throw new IOException(f.getName()+" was written by a newer version");
+      int headerSize = header.getShort(6);
+      channels = header.getShort(8);
+      int recordSize = header.getShort(10);
+      if (headerSize != HEADER_SIZE || recordSize != RECORD_SIZE)
+        throw new IOException(f.getName()+" has an unsupported layout");
+      sampleRate = header.getFloat(12);
+      startMillis = header.getLong(16);
+      startNanos = header.getLong(24);
+      channelNames = new String[channels];
+      for (int c = 0; c < channels; c++)
+      {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < NAME_SIZE; i++)
+        {
+          byte b = header.get(NAMES_OFFSET + c * NAME_SIZE + i);
+          if (b == 0)
+            break;
+          name.append((char) b);
+        }
+        channelNames[c] = name.toString();
+      }
+
+      sampleCount = (size - HEADER_SIZE) / RECORD_SIZE;    // ignore a partly written last record
+      int segmentCount = (int) ((sampleCount + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS);
+      segments = new MappedByteBuffer[segmentCount];
+      for (int s = 0; s < segmentCount; s++)
+      {
+        long first = s * SEGMENT_RECORDS;
+        long count = Math.min(SEGMENT_RECORDS, sampleCount - first);
+        segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * RECORD_SIZE, count * RECORD_SIZE);
+        segments[s].order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+
+    public long sampleCount()
+    {
+      return sampleCount;
+    }
+
+    public long stamp(long index)
+    {
+      return segments[(int) (index / SEGMENT_RECORDS)].getLong((int) (index % SEGMENT_RECORDS) * RECORD_SIZE);
+    }
+
+    public int red(long index)
+    {
+      return segments[(int) (index / SEGMENT_RECORDS)].getInt((int) (index % SEGMENT_RECORDS) * RECORD_SIZE + 8);
+    }
+
+    public int ir(long index)
+    {
+      return segments[(int) (index / SEGMENT_RECORDS)].getInt((int) (index % SEGMENT_RECORDS) * RECORD_SIZE + 12);
+    }
+
+    // Copies up to max records starting at index, returns how many were read
+    public int read(long index, long[] stamps, int[] red, int[] ir, int max)
+    {
+      int n = (int) Math.max(0, Math.min(max, sampleCount - index));
+      for (int k = 0; k < n; k++)
+      {
+        long i = index + k;
+        ByteBuffer seg = segments[(int) (i / SEGMENT_RECORDS)];
+        int pos = (int) (i % SEGMENT_RECORDS) * RECORD_SIZE;
+        stamps[k] = seg.getLong(pos);
+        red[k] = seg.getInt(pos + 8);
+        ir[k] = seg.getInt(pos + 12);
+      }
+      return n;
+    }
+
+    // Index of the first sample stamped at or after nanos (binary search)
+    public long indexAt(long nanos)
+    {
+      long lo = 0, hi = sampleCount;
+      while (lo < hi)
+      {
+        long mid = (lo + hi) >>> 1;
+        if (stamp(mid) < nanos)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      return lo;
+    }
+
+    public void close() throws IOException
+    {
+      file.close();
+    }
+  }
+}
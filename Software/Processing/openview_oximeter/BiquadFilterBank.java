@@ -0,0 +1,153 @@
+/*
+ * Cascaded IIR filter bank applied to every channel: a Butterworth band-pass
+ * (high-pass and low-pass sections of the given order) and an optional mains
+ * notch. Sections are biquads in transposed direct form II with double
+ * precision state, all preallocated, so filtering a sample allocates nothing.
+ * Coefficients follow the RBJ audio EQ cookbook.
+ */
+public class BiquadFilterBank
+{
+  public final int channels;
+  public final float sampleRate;
+  public final int order;
+  public final float lowCut, highCut, notch;
+
+  private final int sections;
+  private final double[] b0, b1, b2, a1, a2;   // per section
+  private final double[] z1, z2;               // per channel * section
+  private final boolean[] primed;              // per channel
+
+  // order is rounded up to even, notch <= 0 (or above Nyquist) leaves it out.
+  // A notch at Nyquist is kept: at 100 sps 50 Hz mains aliases onto it.
+  public BiquadFilterBank(int channels, float sampleRate, int order, float lowCut, float highCut, float notch)
+  {
+    this.channels = channels;
+    this.sampleRate = sampleRate;
+    this.order = Math.max(2, (order + 1) & ~1);
+    this.lowCut = lowCut;
+    this.highCut = highCut;
+    this.notch = notch > 0 && notch <= sampleRate / 2 ? notch : 0;
+
+    int half = this.order / 2;
+    sections = 2 * half + (this.notch > 0 ? 1 : 0);
+    b0 = new double[sections];
+    b1 = new double[sections];
+    b2 = new double[sections];
+    a1 = new double[sections];
+    a2 = new double[sections];
+    z1 = new double[channels * sections];
+    z2 = new double[channels * sections];
+    primed = new boolean[channels];
+
+    int s = 0;
+    for (int k = 1; k <= half; k++)
+    {
+      // Butterworth Q of each second order stage
+      double q = 1 / (2 * Math.sin((2 * k - 1) * Math.PI / (2 * this.order)));
+      design(s++, HIGH_PASS, lowCut, q);
+      design(s++, LOW_PASS, highCut, q);
+    }
+    if (this.notch > 0)
+      design(s, NOTCH, this.notch, 30);
+  }
+
+  private static final int HIGH_PASS = 0, LOW_PASS = 1, NOTCH = 2;
+
+  private void design(int s, int type, double freq, double q)
+  {
+    if (type == NOTCH && 2 * freq >= sampleRate)
+    {
+      nyquistNotch(s, q);
+      return;
+    }
+    double w0 = 2 * Math.PI * freq / sampleRate;
+    double cos = Math.cos(w0);
+    double alpha = Math.sin(w0) / (2 * q);
+    double a0 = 1 + alpha;
+    switch (type)
+    {
+    case HIGH_PASS:
+      b0[s] = (1 + cos) / 2;
+      b1[s] = -(1 + cos);
+      b2[s] = (1 + cos) / 2;
+      break;
+    case LOW_PASS:
+      b0[s] = (1 - cos) / 2;
+      b1[s] = 1 - cos;
+      b2[s] = (1 - cos) / 2;
+      break;
+    default:
+      b0[s] = 1;
+      b1[s] = -2 * cos;
+      b2[s] = 1;
+      break;
+    }
+    b0[s] /= a0;
+    b1[s] /= a0;
+    b2[s] /= a0;
+    a1[s] = -2 * cos / a0;
+    a2[s] = (1 - alpha) / a0;
+  }
+
+  // At w0 = pi the cookbook's alpha is 0 and its poles land on its zeros,
+  // which passes everything. Instead: a double zero at z = -1 and a double
+  // pole just inside it, r from the same -3 dB width w0 / q, unity at DC.
+  private void nyquistNotch(int s, double q)
+  {
+    double r = 1 - Math.PI / q / 2;
+    double g = (1 + r) * (1 + r) / 4;
+    b0[s] = g;
+    b1[s] = 2 * g;
+    b2[s] = g;
+    a1[s] = 2 * r;
+    a2[s] = r * r;
+  }
+
+  public float process(int channel, float x)
+  {
+    if (!primed[channel])
+      prime(channel, x);
+
+    double y = x;
+    int base = channel * sections;
+    for (int s = 0; s < sections; s++)
+    {
+      int i = base + s;
+      double in = y;
+      y = b0[s] * in + z1[i];
+      z1[i] = b1[s] * in - a1[s] * y + z2[i];
+      z2[i] = b2[s] * in - a2[s] * y;
+    }
+    return (float) y;
+  }
+
+  // Filters len samples of one channel in place
+  public void process(int channel, float[] data, int offset, int len)
+  {
+    for (int k = offset; k < offset + len; k++)
+      data[k] = process(channel, data[k]);
+  }
+
+  // Starts the channel in the steady state for a constant input x, so the
+  // large DC level of the first sample doesn't ring through the high-pass
+  private void prime(int channel, double x)
+  {
+    int base = channel * sections;
+    for (int s = 0; s < sections; s++)
+    {
+      double gain = (b0[s] + b1[s] + b2[s]) / (1 + a1[s] + a2[s]);
+      double y = gain * x;
+      z2[base + s] = b2[s] * x - a2[s] * y;
+      z1[base + s] = b1[s] * x - a1[s] * y + z2[base + s];
+      x = y;
+    }
+    primed[channel] = true;
+  }
+
+  public void reset()
+  {
+    java.util.Arrays.fill(z1, 0);
+    java.util.Arrays.fill(z2, 0);
+    java.util.Arrays.fill(primed, false);
+  }
+}
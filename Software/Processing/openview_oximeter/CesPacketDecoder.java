@@ -0,0 +1,224 @@
+/*
+ * Streaming decoder for the CES command interface packets sent by the
+ * Arduino sketch (Continuos.ino):
+ *
+ *   0x0A 0xFA | LEN LSB | LEN MSB | TYPE | DATA (LEN bytes) | 0x00 | 0x0B
+ *
+ * The data part is a list of little-endian 32 bit words (RED, IR for a data
+ * packet). Bytes can be fed in any chunking; decoded words are handed to the
+ * listener from a preallocated array, so nothing is allocated per packet.
+ *
+ * Framing health is counted as it goes (good frames, frames without their
+ * stop byte, impossible lengths, bytes skipped hunting for a preamble). The
+ * counters are written by the decoding thread only and can be read from any
+ * thread.
+ */
+public class CesPacketDecoder
+{
+  /************** Packet Validation  **********************/
+  public static final int CESState_Init = 0;
+  public static final int CESState_SOF1_Found = 1;
+  public static final int CESState_SOF2_Found = 2;
+  public static final int CESState_PktLen_Found = 3;
+
+  /*CES CMD IF Packet Format*/
+  public static final int CES_CMDIF_PKT_START_1 = 0x0A;
+  public static final int CES_CMDIF_PKT_START_2 = 0xFA;
+  public static final int CES_CMDIF_PKT_STOP = 0x0B;
+
+  /*CES CMD IF Packet Indices*/
+  public static final int CES_CMDIF_IND_LEN = 2;
+  public static final int CES_CMDIF_IND_LEN_MSB = 3;
+  public static final int CES_CMDIF_IND_PKTTYPE = 4;
+  public static final int CES_CMDIF_PKT_OVERHEAD = 5;
+
+  /*CES CMD IF Packet Types*/
+  public static final int CES_CMDIF_TYPE_DATA = 0x02;
+  public static final int CES_CMDIF_DATA_LEN = 8;       // RED and IR words, as Continuos.ino sends them
+
+  public static final int WORD_SIZE = 4;
+
+  public interface PacketListener
+  {
+    void onPacket(int pktType, int[] words, int wordCount);
+  }
+
+  private final PacketListener listener;
+  private final byte[] payload;
+  private final int[] words;
+
+  private int rxState = CESState_Init;
+  private int pktLen;
+  private int pktType;
+  private int pktPosCounter;
+  private int payloadCounter;
+
+  /************** Framing Counters **********************/
+  private volatile long framesOk;        // complete frames with their stop byte
+  private volatile long badStop;         // frames dropped because the stop byte was wrong
+  private volatile long lengthErrors;    // length field too big, or wrong for a data packet
+  private volatile long resyncBytes;     // bytes skipped while looking for a preamble
+  private volatile long bytes;           // everything fed in
+
+  public CesPacketDecoder(int maxPayload, PacketListener listener)
+  {
+    this.listener = listener;
+    this.payload = new byte[maxPayload];
+    this.words = new int[maxPayload / WORD_SIZE];
+  }
+
+  public void process(byte[] chunk, int offset, int length)
+  {
+    int end = offset + length;
+    long skipped = 0;
+    for (int i = offset; i < end; i++)
+    {
+      if (rxState == CESState_Init)
+      {
+        // between frames, jump straight to the next 0x0A 0xFA preamble
+        int from = i;
+        while (i < end - 1 && (chunk[i] != (byte) CES_CMDIF_PKT_START_1 || chunk[i + 1] != (byte) CES_CMDIF_PKT_START_2))
+          i++;
+        if (i == end - 1 && chunk[i] != (byte) CES_CMDIF_PKT_START_1)
+          i = end;
+        skipped += i - from;
+        if (i == end)
+          break;
+      }
+      step(chunk[i] & 0xFF);
+    }
+    if (skipped > 0)
+      resyncBytes += skipped;
+    bytes += length;
+  }
+
+  public void process(int rxch)
+  {
+    step(rxch);
+    bytes++;
+  }
+
+  private void step(int rxch)
+  {
+    switch (rxState)
+    {
+    case CESState_Init:
+      if (rxch == CES_CMDIF_PKT_START_1)
+        rxState = CESState_SOF1_Found;
+      else
+        resyncBytes++;
+      break;
+
+    case CESState_SOF1_Found:
+      if (rxch == CES_CMDIF_PKT_START_2)
+        rxState = CESState_SOF2_Found;
+      else if (rxch != CES_CMDIF_PKT_START_1)
+      {
+        rxState = CESState_Init;
+        resyncBytes += 2;
+      } else
+        resyncBytes++;
+      break;
+
+    case CESState_SOF2_Found:
+      rxState = CESState_PktLen_Found;
+      pktLen = rxch;
+      pktPosCounter = CES_CMDIF_IND_LEN;
+      payloadCounter = 0;
+      break;
+
+    case CESState_PktLen_Found:
+      pktPosCounter++;
+      if (pktPosCounter < CES_CMDIF_PKT_OVERHEAD)  //Read Header
+      {
+        if (pktPosCounter == CES_CMDIF_IND_LEN_MSB)
+        {
+          pktLen = (rxch << 8) | pktLen;
+          if (pktLen > payload.length)       // cannot be one of ours, wait for the next start bytes
+          {
+            lengthErrors++;
+            rxState = CESState_Init;
+          }
+        } else if (pktPosCounter == CES_CMDIF_IND_PKTTYPE)
+        {
+          pktType = rxch;
+          if (pktType == CES_CMDIF_TYPE_DATA && pktLen != CES_CMDIF_DATA_LEN)
+          {
+            lengthErrors++;
+            rxState = CESState_Init;
+          }
+        }
+      } else if (pktPosCounter < CES_CMDIF_PKT_OVERHEAD + pktLen)  //Read Data
+      {
+        payload[payloadCounter++] = (byte) rxch;
+      } else if (pktPosCounter == CES_CMDIF_PKT_OVERHEAD + pktLen)  //Trailer byte before the stop byte
+      {
+      } else  //All header and data received
+      {
+        if (rxch == CES_CMDIF_PKT_STOP)
+        {
+          framesOk++;
+          dispatch();
+        } else
+          badStop++;
+        rxState = CESState_Init;
+      }
+      break;
+
+    default:
+      rxState = CESState_Init;
+      break;
+    }
+  }
+
+  public void reset()
+  {
+    rxState = CESState_Init;
+  }
+
+  public long framesOk()
+  {
+    return framesOk;
+  }
+
+  public long badStop()
+  {
+    return badStop;
+  }
+
+  public long lengthErrors()
+  {
+    return lengthErrors;
+  }
+
+  public long resyncBytes()
+  {
+    return resyncBytes;
+  }
+
+  public long bytes()
+  {
+    return bytes;
+  }
+
+  private void dispatch()
+  {
+    int wordCount = payloadCounter / WORD_SIZE;
+    for (int i = 0; i < wordCount; i++)
+    {
+      words[i] = readIntLE(payload, i * WORD_SIZE, WORD_SIZE);
+    }
+    listener.onPacket(pktType, words, wordCount);
+  }
+
+  // Assembles count little-endian bytes starting at offset into an int
+  public static int readIntLE(byte[] data, int offset, int count)
+  {
+    int value = 0;
+    for (int i = count - 1; i >= 0; i--)
+    {
+      value = (value << 8) | (data[offset + i] & 0xFF);
+    }
+    return value;
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Reduces a waveform to what can actually be seen at a given width (M4
+ * decimation). Samples are bucketed into pixel columns and each column keeps
+ * only its first, minimum, maximum and last sample, in the order they
+ * occurred. A polyline through those points draws the same pixels as one
+ * through every sample, but has at most four vertices per column, so drawing
+ * costs O(width) whatever the number of samples.
+ *
+ * Output is px (pixels from the left edge) and py (the sample values), valid
+ * up to the count decimate() returns. Buffers are reused between calls.
+ */
+public class ColumnDecimator
+{
+  public float[] px, py;
+
+  private int count;
+
+  public ColumnDecimator(int width)
+  {
+    px = new float[4 * Math.max(1, width) + 4];
+    py = new float[px.length];
+  }
+
+  // Decimates samples from..to-1 of x/y, with xStart..xEnd mapped onto width
+  // pixels. Returns the number of points written to px/py.
+  public int decimate(float[] x, float[] y, int from, int to, float xStart, float xEnd, float width)
+  {
+    count = 0;
+    if (to <= from)
+      return 0;
+    float scale = xEnd != xStart ? width / (xEnd - xStart) : 0;
+
+    int column = (int) Math.floor((x[from] - xStart) * scale);
+    int first = from, min = from, max = from;
+    for (int i = from + 1; i < to; i++)
+    {
+      int c = (int) Math.floor((x[i] - xStart) * scale);
+      if (c != column)
+      {
+        flush(x, y, first, min, max, i - 1, xStart, scale);
+        column = c;
+        first = min = max = i;
+      }
+      else if (y[i] < y[min])
+        min = i;
+      else if (y[i] > y[max])
+        max = i;
+    }
+    flush(x, y, first, min, max, to - 1, xStart, scale);
+    return count;
+  }
+
+  public int count()
+  {
+    return count;
+  }
+
+  private void flush(float[] x, float[] y, int first, int min, int max, int last, float xStart, float scale)
+  {
+    emit((x[first] - xStart) * scale, y[first]);
+    int lo = Math.min(min, max), hi = Math.max(min, max);
+    if (lo != first && lo != last)
+      emit((x[lo] - xStart) * scale, y[lo]);
+    if (hi != first && hi != last && hi != lo)
+      emit((x[hi] - xStart) * scale, y[hi]);
+    if (last != first)
+      emit((x[last] - xStart) * scale, y[last]);
+  }
+
+  private void emit(float x, float y)
+  {
+    if (count == px.length)
+    {
+      // only when x runs backwards and revisits columns
+      px = java.util.Arrays.copyOf(px, 2 * count);
+      py = java.util.Arrays.copyOf(py, 2 * count);
+    }
+    px[count] = x;
+    py[count] = y;
+    count++;
+  }
+}
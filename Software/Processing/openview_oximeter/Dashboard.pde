@@ -0,0 +1,130 @@
+/*
+ * Tiled view of many simulated oximeters, toggled with D. Every device is a
+ * SamplePipeline of its own (source, decoder, DSP and stats), all of them
+ * stepped by one DeviceScheduler on a few worker threads. Each tile shows the
+ * device's IR trace with its SpO2 and BPM, the footer the aggregate rate.
+ */
+class Dashboard
+{
+  int devices;
+  int cols, rows;
+  float deviceRate;
+  DeviceScheduler scheduler;
+  SamplePipeline[] pipelines;
+  Graph[] tiles;
+  String[] titles;
+  int[] shownSpo2Count, shownBeats;
+
+  long lastSamples, lastDropped;
+  int lastMillis;
+  String status = "";
+
+  Dashboard(int devices, float deviceRate)
+  {
+    this.devices = devices;
+    this.deviceRate = deviceRate;
+    cols = ceil(sqrt(devices * 2));
+    rows = ceil(devices / (float) cols);
+  }
+
+  boolean start()
+  {
+    scheduler = new DeviceScheduler(0);
+    pipelines = new SamplePipeline[devices];
+    tiles = new Graph[devices];
+    titles = new String[devices];
+    shownSpo2Count = new int[devices];
+    shownBeats = new int[devices];
+
+    int top = 70, bottom = height - 40;
+    int w = width / cols, h = (bottom - top) / rows;
+    try
+    {
+      for (int i = 0; i < devices; i++)
+      {
+        // spread heart rate and saturation over the devices
+        SyntheticPpgSource source = new SyntheticPpgSource(deviceRate, 55 + (i * 7) % 70, 86 + (i * 3) % 13, 0.05);
+        source.seed = i + 1;
+        SignalProcessor processor = new SignalProcessor(pSize, deviceRate);
+        processor.setFilters(new BiquadFilterBank(2, deviceRate, filterOrder, filterLow, filterHigh, notchFreq));
+        pipelines[i] = new SamplePipeline(source, processor, 8192, null);
+        pipelines[i].instrument(metrics, "dashboard."+(i+1));
+        scheduler.add(pipelines[i]);
+
+        tiles[i] = new Graph((i % cols) * w + 6, top + (i / cols) * h + 18, w - 12, h - 24);
+        tiles[i].GraphColor = color(0, 255, 0);
+        tiles[i].xMin = 0;
+        tiles[i].xMax = pSize;
+        titles[i] = "#"+(i+1);
+      }
+    }
+    catch(IOException e)
+    {
+      scheduler.stop();
+      helpWidget.output("Could not start the dashboard: "+e.getMessage());
+      return false;
+    }
+    scheduler.start();
+    lastSamples = 0;
+    lastDropped = 0;
+    lastMillis = millis();
+    status = devices+" devices on "+scheduler.workers()+" threads";
+    return true;
+  }
+
+  void stop()
+  {
+    if (scheduler != null)
+      scheduler.stop();
+    metrics.remove("dashboard.");
+  }
+
+  void draw()
+  {
+    textAlign(LEFT, TOP);
+    textSize(11);
+    for (int i = 0; i < devices; i++)
+    {
+      SignalFrame frame = pipelines[i].frames.latest();
+      Graph tile = tiles[i];
+
+      if (frame.spo2Count != shownSpo2Count[i] || frame.beats != shownBeats[i])
+      {
+        shownSpo2Count[i] = frame.spo2Count;
+        shownBeats[i] = frame.beats;
+        titles[i] = "#"+(i+1)+"  SpO2 "+(frame.spo2 == 0 ? "--" : nf(frame.spo2, 0, 1))+"  "+(frame.bpm == 0 ? "--" : round(frame.bpm)+" BPM");
+      }
+      fill(255);
+      text(titles[i], tile.xPos, tile.yPos - 15);
+      noFill();
+      stroke(60);
+      strokeWeight(1);
+      rect(tile.xPos - 2, tile.yPos - 2, tile.Width + 4, tile.Height + 4);
+
+      if (frame.samples > 0)
+      {
+        tile.yMin = frame.irMin;
+        tile.yMax = frame.irMax;
+        time = frame.time;
+        tile.LineGraph(frame.xdata, frame.zdata);
+        pipelines[i].displayed(frame);
+      }
+    }
+
+    // aggregate rate, refreshed once a second
+    int now = millis();
+    if (now - lastMillis >= 1000)
+    {
+      long samples = scheduler.samples();
+      long dropped = scheduler.dropped();
+      float rate = (samples - lastSamples) * 1000.0 / (now - lastMillis);
+      status = devices+" devices on "+scheduler.workers()+" threads: "
+        +round(rate)+" samples/s ("+round(rate / devices)+" per device), "
+        +dropped+" dropped ("+(dropped - lastDropped)+" in the last second)";
+      lastSamples = samples;
+      lastDropped = dropped;
+      lastMillis = now;
+    }
+    helpWidget.output(status);
+  }
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Runs many SamplePipelines on a fixed number of worker threads. Every
+ * device is owned by exactly one worker (device i goes to worker i % n), and
+ * a worker keeps sweeping its devices, polling each source and processing
+ * what it delivered. Devices never move between threads, so a pipeline's
+ * single-producer/single-consumer guarantees still hold, and 32 devices cost
+ * a handful of threads instead of 64.
+ */
+public class DeviceScheduler
+{
+  private final List<SamplePipeline> devices = new ArrayList<SamplePipeline>();
+  private final int workerCount;
+  private Worker[] workers;
+  private volatile boolean running;
+
+  // workers <= 0 means one per available processor
+  public DeviceScheduler(int workers)
+  {
+    this.workerCount = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+  }
+
+  // Opens the device's source, devices can only be added before start()
+  public void add(SamplePipeline device) throws IOException
+  {
+    if (running)
+      throw new IllegalStateException("scheduler already started");
+    device.source.open();
+    devices.add(device);
+  }
+
+  public List<SamplePipeline> devices()
+  {
+    return devices;
+  }
+
+  public void start()
+  {
+    running = true;
+    int n = Math.max(1, Math.min(workerCount, devices.size()));
+    workers = new Worker[n];
+    for (int w = 0; w < n; w++)
+    {
+      List<SamplePipeline> stripe = new ArrayList<SamplePipeline>();
+      for (int d = w; d < devices.size(); d += n)
+        stripe.add(devices.get(d));
+      workers[w] = new Worker(stripe.toArray(new SamplePipeline[stripe.size()]), w);
+      workers[w].start();
+    }
+  }
+
+  public void stop()
+  {
+    running = false;
+    if (workers != null)
+    {
+      for (Worker w : workers)
+      {
+        w.interrupt();
+        try
+        {
+          w.join(1000);
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    for (SamplePipeline d : devices)
+      d.source.close();
+  }
+
+  public int workers()
+  {
+    return workers == null ? 0 : workers.length;
+  }
+
+  // samples processed by all devices so far
+  public long samples()
+  {
+    long total = 0;
+    for (SamplePipeline d : devices)
+      total += d.processed();
+    return total;
+  }
+
+  public long dropped()
+  {
+    long total = 0;
+    for (SamplePipeline d : devices)
+      total += d.dropped();
+    return total;
+  }
+
+  private class Worker extends Thread
+  {
+    private final SamplePipeline[] stripe;
+
+    Worker(SamplePipeline[] stripe, int index)
+    {
+      super("device-worker-" + index);
+      this.stripe = stripe;
+      setDaemon(true);
+    }
+
+    public void run()
+    {
+      try
+      {
+        while (running)
+        {
+          int work = 0;
+          for (SamplePipeline d : stripe)
+          {
+            work += d.pollSource();
+            work += d.processPending();
+          }
+          if (work == 0)
+            Thread.sleep(1);
+        }
+      }
+      catch (InterruptedException e)
+      {
+        // shutdown
+      }
+    }
+  }
+}
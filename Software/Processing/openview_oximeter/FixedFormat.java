@@ -0,0 +1,74 @@
+/*
+ * Formats numbers with a fixed number of decimals straight into a caller
+ * supplied char[], so labels can be refreshed every frame without building
+ * Strings (or BigDecimals) each time.
+ */
+public final class FixedFormat
+{
+  private static final long[] POW10 = {
+    1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+  };
+
+  private FixedFormat()
+  {
+  }
+
+  // Writes value rounded to decimals places at out[offset], returns the end offset
+  public static int format(double value, int decimals, char[] out, int offset)
+  {
+    if (Double.isNaN(value))
+      return append("NaN", out, offset);
+
+    int pos = offset;
+    boolean negative = value < 0;
+    if (negative)
+      value = -value;
+
+    long scale = POW10[decimals];
+    if (value * scale >= Long.MAX_VALUE / 10)
+      return append(negative ? "-inf" : "inf", out, pos);
+
+    long scaled = Math.round(value * scale);
+    if (negative && scaled != 0)
+      out[pos++] = '-';
+    pos = appendLong(scaled / scale, out, pos);
+    if (decimals > 0)
+    {
+      out[pos++] = '.';
+      long frac = scaled % scale;
+      for (int i = decimals - 1; i >= 0; i--)
+      {
+        out[pos + i] = (char) ('0' + frac % 10);
+        frac /= 10;
+      }
+      pos += decimals;
+    }
+    return pos;
+  }
+
+  public static int appendLong(long value, char[] out, int offset)
+  {
+    int pos = offset;
+    if (value < 0)
+    {
+      out[pos++] = '-';
+      value = -value;
+    }
+    int digits = 1;
+    for (long v = value / 10; v > 0; v /= 10)
+      digits++;
+    for (int i = digits - 1; i >= 0; i--)
+    {
+      out[pos + i] = (char) ('0' + value % 10);
+      value /= 10;
+    }
+    return pos + digits;
+  }
+
+  public static int append(String s, char[] out, int offset)
+  {
+    int len = s.length();
+    s.getChars(0, len, out, offset);
+    return offset + len;
+  }
+}
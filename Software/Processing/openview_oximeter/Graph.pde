@@ -16,7 +16,7 @@ class Graph
   color   StrokeColor=color(180);     
 
   String  Title="Title";          // Default titles
-  String  xLabel="x - Label";
+  String  xLabel="No.Of Samples";
   String  yLabel="y - Label";
 
   float   yMax, yMin;      // Default axis dimensions
@@ -25,103 +25,283 @@ class Graph
 
   PFont   Font;                   // Selected font used for text 
 
+  ColumnDecimator decimator;      // per pixel column min/max of the plotted data
+
+  static final int AXIS_LEFT=100, AXIS_TOP=10, AXIS_RIGHT=30, AXIS_BOTTOM=50;   // layer margins around the plot
+  PGraphics axisLayer;            // axes, ticks and labels as of the last renderAxis()
+  float   axisYMin, axisYMax, axisXMin, axisXMax;
+  int     axisXDiv, axisYDiv;
+  String  axisTitle, axisXLabel;
+  char[]  label = new char[32];
+
+  PGraphics trace;                // sweep mode waveform, kept between frames
+  float[] traceX;                 // sample index as x, for the decimator
+  long    traceSamples;           // samples already drawn into trace
+  float   traceYMin, traceYMax;
+  int     eraseBand=12;           // px cleared ahead of the newest sample
+
+  float[] columnMin, columnMax;   // history view envelope, one entry per pixel column
+
   Graph(int x, int y, int w, int h) {  // The main declaration function
     xPos = x;
     yPos = y;
     Width = w;
     Height = h;
+    decimator = new ColumnDecimator(w);
   }
 
+  // Draws the cached axis layer, re-rendering it only when the ranges,
+  // divisions, title or size changed since the last frame
   void DrawAxis() {
+    if (axisLayer == null || axisLayer.width != Width+AXIS_LEFT+AXIS_RIGHT || axisLayer.height != Height+AXIS_TOP+AXIS_BOTTOM
+      || axisYMin != yMin || axisYMax != yMax || axisXMin != xMin || axisXMax != xMax
+      || axisXDiv != xDiv || axisYDiv != yDiv || !Title.equals(axisTitle) || !xLabel.equals(axisXLabel)) {
+      renderAxis();
+    }
+    image(axisLayer, xPos-AXIS_LEFT, yPos-AXIS_TOP);
+  }
 
+  void renderAxis() {
+    if (axisLayer == null || axisLayer.width != Width+AXIS_LEFT+AXIS_RIGHT || axisLayer.height != Height+AXIS_TOP+AXIS_BOTTOM) {
+      axisLayer = createGraphics(Width+AXIS_LEFT+AXIS_RIGHT, Height+AXIS_TOP+AXIS_BOTTOM);
+    }
+    axisYMin = yMin;
+    axisYMax = yMax;
+    axisXMin = xMin;
+    axisXMax = xMax;
+    axisXDiv = xDiv;
+    axisYDiv = yDiv;
+    axisTitle = Title;
+    axisXLabel = xLabel;
 
-
-    fill(0); 
-    color(0);
-    stroke(0);
-    strokeWeight(1);
+    PGraphics pg = axisLayer;
+    int x0 = AXIS_LEFT, y0 = AXIS_TOP;     // top left corner of the plot inside the layer
     int t=60;
 
-    // rect(xPos-t*1.6,yPos-t,Width+t*2.5,Height+t*2);            // outline
-    textAlign(CENTER);
-    textSize(25);
-
-    fill(255);
-    // text(Title,xPos+Width/5,yPos+20);                            // Heading Title
-    textAlign(CENTER);
-    textSize(14);
-    text("No.Of Samples  -  "+Title, xPos+Width/2, yPos+Height+t/1.5);                     // x-axis Label 
-
-    rotate(-PI/2);                                               // rotate -90 degrees
-    text("", -yPos-Height/2, xPos-t*1.6+40);                   // y-axis Label  
-    rotate(PI/2);                                                // rotate back
-    fill(255);
-    textSize(10); 
-    noFill(); 
-    stroke(0); 
-    smooth();
-    strokeWeight(1);
-    //Edges
-    stroke(255);
-    line(xPos-3, yPos+Height, xPos-3, yPos);                        // y-axis line 
-    line(xPos-3, yPos+Height, xPos+Width+5, yPos+Height);           // x-axis line 
-
-    stroke(200);
-
-    if (yMin<0) {
-      line(xPos-7, // zero line 
-        yPos+Height-(abs(yMin)/(yMax-yMin))*Height, // 
-        xPos+Width, 
-        yPos+Height-(abs(yMin)/(yMax-yMin))*Height
-        );
-    }
+    pg.beginDraw();
+    pg.clear();
+    pg.strokeWeight(1);
 
-    stroke(255);
+    pg.fill(255);
+    pg.textAlign(CENTER);
+    pg.textSize(14);
+    pg.text(xLabel+"  -  "+Title, x0+Width/2, y0+Height+t/1.5);              // x-axis Label 
 
-    for (int x=0; x<=xDiv; x++) {
-
-      line(float(x)/xDiv*Width+xPos-3, yPos+Height, //  x-axis Sub devisions    
-        float(x)/xDiv*Width+xPos-3, yPos+Height+5);     
+    //Edges
+    pg.stroke(255);
+    pg.line(x0-3, y0+Height, x0-3, y0);                                        // y-axis line 
+    pg.line(x0-3, y0+Height, x0+Width+5, y0+Height);                           // x-axis line 
 
-      textSize(10);                                      // x-axis Labels
+    if (yMin<0 && yMax>0) {
+      pg.stroke(200);
+      float zero = y0+Height-(abs(yMin)/(yMax-yMin))*Height;
+      pg.line(x0-7, zero, x0+Width, zero);                                      // zero line 
+      pg.stroke(255);
+    }
 
-      String xAxis=str((xMin+float(x)/xDiv*(xMax-xMin))); // the only way to get a specific number of decimals 
-      String[] xAxisMS=split(xAxis, '.');                 // is to split the float into strings 
-      text(xAxisMS[0]+"."+xAxisMS[1].charAt(0), // ...
-        float(x)/xDiv*Width+xPos-3, yPos+Height+15);   // x-axis Labels
+    pg.textSize(10);
+    for (int x=0; x<=xDiv; x++) {
+      float tx = float(x)/xDiv*Width+x0-3;
+      pg.line(tx, y0+Height, tx, y0+Height+5);                                  // x-axis Sub devisions    
+      int len = FixedFormat.format(xMin+float(x)/xDiv*(xMax-xMin), 1, label, 0);
+      pg.text(label, 0, len, tx, y0+Height+15);                                 // x-axis Labels
     }
 
+    // as many decimals as the tick step needs
+    float yStep = (yMax-yMin)/yDiv;
+    int decimals = constrain(-floor(log(abs(yStep))/log(10)+1e-3), 0, 8);
+    pg.textAlign(RIGHT);
     for (int y=0; y<=yDiv; y++) {
-      line(xPos-3, float(y)/yDiv*Height+yPos, // ...
-        xPos-7, float(y)/yDiv*Height+yPos);              // y-axis lines 
+      pg.line(x0-3, float(y)/yDiv*Height+y0, x0-7, float(y)/yDiv*Height+y0);     // y-axis lines 
+      int len = FixedFormat.format(yMin+y*yStep, decimals, label, 0);
+      pg.text(label, 0, len, x0-15, float(yDiv-y)/yDiv*Height+y0+3);           // y-axis Labels
+    }
+    pg.endDraw();
+  }
 
-      textAlign(RIGHT);
-      fill(255);
+  // Sets yMin/yMax around lo..hi so the y ticks fall on round numbers, and
+  // keeps that range while the data still fill at least half of it. The axis
+  // (and its cached layer) then only changes when the signal level moves.
+  void autoRange(float lo, float hi) {
+    if (Float.isNaN(lo) || Float.isNaN(hi))
+      return;
+    if (hi - lo < 1e-6)
+      hi = lo + 1e-6;
+    if (yMax > yMin && lo >= yMin && hi <= yMax && hi - lo >= 0.5*(yMax-yMin))
+      return;
 
-      String yAxis=str(yMin+float(y)/yDiv*(yMax-yMin));     // Make y Label a string
-      String[] yAxisMS=split(yAxis, '.');                    // Split string
-      //println(yAxisMS);
-      text(yAxisMS[0]+"."+yAxisMS[1], // ... 
-        xPos-15, float(yDiv-y)/yDiv*Height+yPos+3);       // y-axis Labels
+    float step = niceStep((hi-lo)/yDiv);
+    float lower = floor(lo/step)*step;
+    while (lower + yDiv*step < hi) {
+      step = niceStep(step*1.01);
+      lower = floor(lo/step)*step;
     }
-    stroke(0);
+    yMin = lower;
+    yMax = lower + yDiv*step;
+  }
+
+  // smallest 1, 2 or 5 times a power of ten that is >= raw
+  float niceStep(float raw) {
+    float p = pow(10, floor(log(raw)/log(10)));
+    float f = raw/p;
+    return (f <= 1 ? 1 : f <= 2 ? 2 : f <= 5 ? 5 : 10)*p;
   }
+
   void LineGraph(float[] x, float[] y) {
+    // reduce to at most 4 points per pixel column and draw them as one strip
+    float xStart = x[0], xEnd = x[x.length-1];
+    int n = decimator.decimate(x, y, 0, x.length, xStart, xEnd, Width);
+    float yScale = Height/(yMax-yMin);
+    float yBase = yPos+Height+yMin*yScale;
 
-    for (int i=0; i<(x.length-1); i++)
+    pushStyle();
+    smooth();
+    strokeWeight(3);
+    strokeJoin(ROUND);
+    stroke(GraphColor);
+    noFill();
+    beginShape();
+    for (int i=0; i<n; i++)
     {
-      smooth();
-      strokeWeight(3);
-      stroke(GraphColor);
-      line(xPos+(x[i]-x[0])/(x[x.length-1]-x[0])*Width, 
-        yPos+(Height)-(y[i]/(yMax-yMin)*Height)+(yMin)/(yMax-yMin)*Height, 
-        xPos+(x[i+1]-x[0])/(x[x.length-1]-x[0])*Width, 
-        yPos+(Height)-(y[i+1]/(yMax-yMin)*Height)+(yMin)/(yMax-yMin)*Height);
-     
+      vertex(xPos+decimator.px[i], yBase-decimator.py[i]*yScale);
     }
-    
+    endShape();
+    popStyle();
+
     stroke(0);
     fill(0);
-    rect(xPos-22+((time-2)-x[0])/(x[x.length-1]-x[0])*Width,0,50,height);    
+    rect(xPos-22+((time-2)-xStart)/(xEnd-xStart)*Width,yPos-2,50,Height+4);
+  }
+
+  // Sweep mode: like a patient monitor, the trace is written left to right
+  // into a persistent buffer and only the samples that arrived since the last
+  // call are drawn, each clearing a narrow band ahead of it. y is the
+  // circular window, next the index the next sample will go to and samples
+  // the running sample count. The whole window is only redrawn when the
+  // range or size changed or more than a window came in since last time.
+  void SweepGraph(float[] y, int next, long samples) {
+    int n = y.length;
+    if (traceX == null || traceX.length != n) {
+      traceX = new float[n];
+      for (int i=0; i<n; i++) traceX[i] = i;
+      traceSamples = samples + n;     // forces a redraw
+    }
+    long fresh = samples-traceSamples;
+    boolean redraw = trace == null || trace.width != Width || trace.height != Height
+      || traceYMin != yMin || traceYMax != yMax || fresh < 0 || fresh >= n;
+
+    if (trace == null || trace.width != Width || trace.height != Height) {
+      trace = createGraphics(Width, Height);
+    }
+    trace.beginDraw();
+    trace.strokeWeight(3);
+    trace.strokeJoin(ROUND);
+    trace.noFill();
+    if (redraw) {
+      trace.background(0);
+      traceYMin = yMin;
+      traceYMax = yMax;
+      sweepRun(y, 0, next);
+      sweepRun(y, next, n);
+      eraseAhead(next-1, n);
+    } else if (fresh > 0) {
+      int from = next-(int)fresh;
+      if (from < 0) {
+        sweepRun(y, n+from, n);
+        from = 0;
+      }
+      sweepRun(y, from, next);
+      eraseAhead(next-1, n);
+    }
+    trace.endDraw();
+    traceSamples = samples;
+
+    image(trace, xPos, yPos);
+  }
+
+  // draws samples from..to-1, joined to the sample before from unless from is 0
+  void sweepRun(float[] y, int from, int to) {
+    if (to <= from) return;
+    int n = y.length;
+    int start = max(from-1, 0);
+    float xScale = (float) Width/(n-1);
+    float yScale = Height/(yMax-yMin);
+
+    trace.noStroke();
+    trace.fill(0);
+    float x0 = from > 0 ? (from-1)*xScale+2 : 0;
+    trace.rect(x0, 0, (to-1)*xScale-x0+1, Height);
+
+    trace.noFill();
+    trace.stroke(GraphColor);
+    int count = decimator.decimate(traceX, y, start, to, 0, n-1, Width);
+    trace.beginShape();
+    for (int i=0; i<count; i++) {
+      trace.vertex(decimator.px[i], Height-(decimator.py[i]-yMin)*yScale);
+    }
+    trace.endShape();
+  }
+
+  // clears eraseBand px after sample last, wrapping to the left edge
+  void eraseAhead(int last, int n) {
+    float x = ((last+n)%n)*(float) Width/(n-1)+2;
+    trace.noStroke();
+    trace.fill(0);
+    trace.rect(x, 0, eraseBand, Height);
+    if (x+eraseBand > Width) {
+      trace.rect(0, 0, x+eraseBand-Width, Height);
+    }
+  }
+
+  // History view: samples from..to-1 of a MinMaxPyramid as a min/max
+  // envelope, one column per pixel (or per sample when zoomed in further),
+  // with the x axis in seconds.
+  // The pyramid level follows the zoom, so any span costs about O(Width).
+  void HistoryGraph(MinMaxPyramid history, long from, long to, float sampleRate) {
+    if (columnMin == null || columnMin.length != Width) {
+      columnMin = new float[Width];
+      columnMax = new float[Width];
+    }
+    int columns = history.query(from, to, Width, columnMin, columnMax);
+    if (columns == 0) return;
+
+    float lo = columnMin[0], hi = columnMax[0];
+    for (int c=1; c<columns; c++) {
+      lo = min(lo, columnMin[c]);
+      hi = max(hi, columnMax[c]);
+    }
+    autoRange(lo, hi);
+    xMin = from/sampleRate;
+    xMax = to/sampleRate;
+
+    float yScale = Height/(yMax-yMin);
+    float xStep = (float) Width/columns;
+    pushStyle();
+    stroke(GraphColor);
+    noFill();
+    if (columns < Width) {
+      // fewer samples than pixels, a plain line through them
+      strokeWeight(3);
+      strokeJoin(ROUND);
+      beginShape();
+      for (int c=0; c<columns; c++) {
+        vertex(xPos+(c+0.5)*xStep, yPos+Height-(columnMin[c]-yMin)*yScale);
+      }
+      endShape();
+    } else {
+      // one vertical stroke per column, stretched to meet the previous
+      // column so steep edges stay connected
+      strokeWeight(1);
+      strokeCap(SQUARE);
+      float prevMin = columnMin[0], prevMax = columnMax[0];
+      for (int c=0; c<columns; c++) {
+        float bottom = min(columnMin[c], prevMax), top = max(columnMax[c], prevMin);
+        float x = xPos+c+0.5;
+        line(x, yPos+Height-(bottom-yMin)*yScale, x, yPos+Height-(top-yMin)*yScale);
+        prevMin = columnMin[c];
+        prevMax = columnMax[c];
+      }
+    }
+    popStyle();
   }
-}
\ No newline at end of file
+}
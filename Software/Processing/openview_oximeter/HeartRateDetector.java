@@ -0,0 +1,135 @@
+/*
+ * Streaming beat detector for the IR channel.
+ *
+ * Per sample: a one-pole DC tracker and a two-pole 4 Hz low-pass, then the
+ * rise of the filtered pulse over the last 100 ms, which peaks on every
+ * systolic upstroke. A beat is declared when the rise crosses half of its
+ * adaptive peak level outside a refractory period (at least 250 ms, and 60%
+ * of the average interval once there is one, which keeps the dicrotic wave
+ * out). Everything is a fixed amount of work per sample, so the BPM is
+ * updated on the very sample that completes the upstroke.
+ *
+ * Intervals are measured in samples (so serial chunking doesn't add jitter),
+ * beat times are reported as the host stamp of the detecting sample.
+ */
+public class HeartRateDetector
+{
+  private static final int AVERAGE_BEATS = 8;
+
+  public final float sampleRate;
+
+  private final float alphaDc, alphaLp;
+  private final float[] history;     // filtered pulse over the last 100 ms
+  private final int learnSamples, refractorySamples, minInterval, maxInterval;
+  private final float decay;
+
+  private float dc, lp1, lp;
+  private int historyPos;
+  private long n;
+  private boolean primed, above;
+  private float peakLevel, currentPeak, learnMax;
+  private long lastBeatSample = -1;
+
+  private final int[] intervals = new int[AVERAGE_BEATS];
+  private int intervalCount, intervalPos;
+  private long intervalSum;
+
+  public float instantBpm;       // from the last beat to beat interval
+  public float bpm;              // average over the last AVERAGE_BEATS intervals
+  public int beats;
+  public long lastBeatNanos;
+  public long lastLatencyNanos;  // sample arrival to BPM update, for the last beat
+
+  public HeartRateDetector(float sampleRate)
+  {
+    this.sampleRate = sampleRate;
+    alphaDc = (float) (1 - Math.exp(-2 * Math.PI * 0.5 / sampleRate));
+    alphaLp = (float) (1 - Math.exp(-2 * Math.PI * 4.0 / sampleRate));
+    history = new float[Math.max(1, Math.round(0.1f * sampleRate))];
+    learnSamples = Math.round(2 * sampleRate);
+    refractorySamples = Math.round(0.25f * sampleRate);       // 240 bpm
+    minInterval = refractorySamples;
+    maxInterval = Math.round(2.5f * sampleRate);              // 24 bpm
+    decay = (float) Math.pow(0.5, 1 / (3.0 * sampleRate));    // peak level halves in 3 s without beats
+  }
+
+  // Adds one IR sample, returns true if it completed a beat
+  public boolean push(long nanos, float ir)
+  {
+    if (n == 0)
+      dc = ir;
+
+    // the pulse is a dip in the IR counts, flip it so systole is a rising edge
+    dc += (ir - dc) * alphaDc;
+    lp1 += (dc - ir - lp1) * alphaLp;
+    lp += (lp1 - lp) * alphaLp;
+
+    float rise = lp - history[historyPos];
+    history[historyPos] = lp;
+    historyPos = (historyPos + 1) % history.length;
+    long sample = n++;
+    if (sample < history.length)
+      return false;
+
+    if (!primed)
+    {
+      learnMax = Math.max(learnMax, rise);
+      if (n >= learnSamples)
+      {
+        peakLevel = learnMax;
+        primed = true;
+      }
+      return false;
+    }
+
+    float threshold = 0.5f * peakLevel;
+    if (above)
+    {
+      currentPeak = Math.max(currentPeak, rise);
+      if (rise < 0.5f * threshold)
+      {
+        above = false;
+        peakLevel = 0.875f * peakLevel + 0.125f * currentPeak;
+      }
+      return false;
+    }
+
+    peakLevel *= decay;
+    int refractory = refractorySamples;
+    if (intervalCount > 0)
+      refractory = (int) Math.max(refractory, 0.6f * intervalSum / intervalCount);
+    if (rise <= threshold || (lastBeatSample >= 0 && sample - lastBeatSample < refractory))
+      return false;
+
+    above = true;
+    currentPeak = rise;
+    if (lastBeatSample >= 0)
+    {
+      int interval = (int) (sample - lastBeatSample);
+      if (interval >= minInterval && interval <= maxInterval)
+      {
+        instantBpm = 60 * sampleRate / interval;
+        if (intervalCount == AVERAGE_BEATS)
+          intervalSum -= intervals[intervalPos];
+        else
+          intervalCount++;
+        intervals[intervalPos] = interval;
+        intervalSum += interval;
+        intervalPos = (intervalPos + 1) % AVERAGE_BEATS;
+        bpm = 60 * sampleRate * intervalCount / intervalSum;
+      }
+    }
+    lastBeatSample = sample;
+    lastBeatNanos = nanos;
+    beats++;
+
+    lastLatencyNanos = System.nanoTime() - nanos;
+    return true;
+  }
+
+  // no beat for longer than the slowest rate we accept
+  public boolean lost()
+  {
+    return lastBeatSample < 0 || n - lastBeatSample > maxInterval;
+  }
+}
@@ -3,10 +3,13 @@ class MessageBox {
   public float x, y, w, h;
   boolean colorValue = true;
 
-  String Mini = "0.0";
-  String Max = "0.0";
-  String Avg = "0.0";
-  String RMS = "0.0";
+  // last snapshot, refreshed once per frame by update()
+  float mini, max, avg, rms;
+  char[] Mini = new char[32];
+  char[] Max = new char[32];
+  char[] Avg = new char[32];
+  char[] RMS = new char[32];
+  int miniLen, maxLen, avgLen, rmsLen;
   String MP = "0.0";
   String MPDATE = ""+new Date();
   int padding = 5;
@@ -18,7 +21,22 @@ class MessageBox {
     h = _height;
   }
 
-  public void update() {
+  public void update(SignalFrame frame) {
+    mini = frame.redMin;
+    max = frame.redMax;
+    avg = frame.redAvg;
+    rms = frame.redRms;
+
+    miniLen = field(mini, Mini);
+    maxLen = field(max, Max);
+    avgLen = field(avg, Avg);
+    rmsLen = field(rms, RMS);
+  }
+
+  int field(float value, char[] buf) {
+    int len = FixedFormat.append(": ", buf, 0);
+    len = FixedFormat.format(value, 5, buf, len);
+    return FixedFormat.append(" Pounds", buf, len);
   }
 
   public void draw() {
@@ -36,44 +54,16 @@ class MessageBox {
 
 
     text("Min", width/3.5, y + padding + 4);
-    text(": "+Mini+" Pounds", width/3, y + padding + 4);
+    text(Mini, 0, miniLen, width/3, y + padding + 4);
     text("Peak", width/1.7, y + padding + 4);
-    text(": "+Max+" Pounds", width/1.55, y + padding + 4);
+    text(Max, 0, maxLen, width/1.55, y + padding + 4);
     
     
     text("Avg", width/3.5, y + padding + 34);
-    text(": "+Avg+" Pounds", width/3, y + padding + 34);
+    text(Avg, 0, avgLen, width/3, y + padding + 34);
     text("RMS", width/1.7, y + padding + 34);
-    text(": "+RMS+" Pounds", width/1.55, y + padding + 34); 
+    text(RMS, 0, rmsLen, width/1.55, y + padding + 34); 
     
     popStyle();
   }
-  public void msg(BigDecimal mini, BigDecimal max, BigDecimal avg, BigDecimal rms) {  
-
-    Mini = mini+"";
-    Max = max+"";
-    Avg = avg+"";
-    RMS = rms+"";
-    if (Mini.length() >= 10)
-    {
-      Mini = Mini.substring(0, 10);
-    }
-    if (Max.length() >= 10)
-    {
-      Max = Max.substring(0, 10);
-    }
-    if (Avg.length() >= 10)
-    {
-      Avg = Avg.substring(0, 10);
-    }
-    if (RMS.length() >= 10)
-    {
-      RMS = RMS.substring(0, 10);
-    }
-    // prevOutputs.add(_output);
-  }
 };
-
-/*public void msg(BigDecimal mini, BigDecimal max, BigDecimal avg, BigDecimal rms) {
- msgBox.msg(mini, max, avg, rms);
- }*/
\ No newline at end of file
@@ -0,0 +1,432 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/*
+ * Counters, gauges and latency histograms for the running app, readable on
+ * screen and over JMX (one MBean whose attributes are the metric names).
+ *
+ * Recording never takes a lock: counters are LongAdders, histograms are
+ * arrays of atomic bucket counts. Once a second a timer thread turns counter
+ * totals into rates and the histogram buckets of the last second into
+ * percentiles, so readers only ever look at finished numbers.
+ */
+public class Metrics implements DynamicMBean
+{
+  public interface Gauge
+  {
+    double value();
+  }
+
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+  private Timer timer;
+
+  // Starts the once a second roll-up
+  public void start()
+  {
+    timer = new Timer("metrics", true);
+    timer.scheduleAtFixedRate(new TimerTask()
+    {
+      public void run()
+      {
+        tick();
+      }
+    }, 1000, 1000);
+  }
+
+  public void stop()
+  {
+    if (timer != null)
+      timer.cancel();
+  }
+
+  public Counter counter(String name)
+  {
+    Counter c = counters.get(name);
+    if (c == null)
+    {
+      counters.putIfAbsent(name, new Counter(null, null));
+      c = counters.get(name);
+    }
+    return c;
+  }
+
+  // A counter whose total is read from somewhere else (a decoder, an MXBean).
+  // Replacing one of the same name (a reconnected source) carries on from its
+  // total and rate; remove() the name first to start again from zero.
+  public Counter cumulative(String name, Gauge total)
+  {
+    Counter c = new Counter(total, counters.get(name));
+    counters.put(name, c);
+    return c;
+  }
+
+  public void gauge(String name, Gauge gauge)
+  {
+    gauges.put(name, gauge);
+  }
+
+  public Histogram histogram(String name)
+  {
+    Histogram h = histograms.get(name);
+    if (h == null)
+    {
+      histograms.putIfAbsent(name, new Histogram());
+      h = histograms.get(name);
+    }
+    return h;
+  }
+
+  // Drops every metric under prefix, e.g. when a pipeline is replaced
+  public void remove(String prefix)
+  {
+    removePrefix(counters, prefix);
+    removePrefix(gauges, prefix);
+    removePrefix(histograms, prefix);
+  }
+
+  private static void removePrefix(Map<String, ?> map, String prefix)
+  {
+    for (Iterator<String> it = map.keySet().iterator(); it.hasNext(); )
+    {
+      if (it.next().startsWith(prefix))
+        it.remove();
+    }
+  }
+
+  // rate of a counter over the last few seconds, 0 if there is no such counter
+  public double rate(String name)
+  {
+    Counter c = counters.get(name);
+    return c == null ? 0 : c.rate;
+  }
+
+  public double gaugeValue(String name)
+  {
+    Gauge g = gauges.get(name);
+    return g == null ? 0 : g.value();
+  }
+
+  void tick()
+  {
+    long now = System.currentTimeMillis();
+    for (Counter c : counters.values())
+      c.tick(now);
+    for (Histogram h : histograms.values())
+      h.tick();
+  }
+
+  /************** JVM **********************/
+
+  // GC count and time, heap in use and (on HotSpot) bytes allocated, as jvm.*
+  public void addJvmMetrics()
+  {
+    final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+    cumulative("jvm.gc.count", new Gauge()
+    {
+      public double value()
+      {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : collectors)
+          n += Math.max(0, gc.getCollectionCount());
+        return n;
+      }
+    });
+    cumulative("jvm.gc.millis", new Gauge()
+    {
+      public double value()
+      {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : collectors)
+          n += Math.max(0, gc.getCollectionTime());
+        return n;
+      }
+    });
+    gauge("jvm.heap.used", new Gauge()
+    {
+      public double value()
+      {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+      }
+    });
+
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean)
+    {
+      final com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+      if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled())
+      {
+        // live threads only, which is what an allocation rate needs
+        cumulative("jvm.allocated.bytes", new Gauge()
+        {
+          public double value()
+          {
+            long n = 0;
+            for (long bytes : hotspot.getThreadAllocatedBytes(hotspot.getAllThreadIds()))
+              n += Math.max(0, bytes);
+            return n;
+          }
+        });
+      }
+    }
+  }
+
+  /************** JMX **********************/
+
+  public void register(String objectName)
+  {
+    try
+    {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(objectName);
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+      server.registerMBean(this, name);
+    }
+    catch (Exception e)
+    {
+      System.err.println("Metrics not registered with JMX: " + e);
+    }
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException
+  {
+    Object value = lookup(attribute);
+    if (value == null)
+      throw new AttributeNotFoundException(attribute);
+    return value;
+  }
+
+  private Object lookup(String attribute)
+  {
+    Counter c = counters.get(attribute);
+    if (c != null)
+      return c.total();
+    if (attribute.endsWith(".rate"))
+    {
+      c = counters.get(attribute.substring(0, attribute.length() - 5));
+      if (c != null)
+        return c.rate;
+    }
+    Gauge g = gauges.get(attribute);
+    if (g != null)
+      return g.value();
+    int dot = attribute.lastIndexOf('.');
+    Histogram h = dot > 0 ? histograms.get(attribute.substring(0, dot)) : null;
+    if (h != null)
+    {
+      String field = attribute.substring(dot + 1);
+      if (field.equals("count"))
+        return h.count;
+      if (field.equals("p50"))
+        return h.p50;
+      if (field.equals("p99"))
+        return h.p99;
+      if (field.equals("max"))
+        return h.max;
+      if (field.equals("maxEver"))
+        return h.maxEver();
+    }
+    return null;
+  }
+
+  public AttributeList getAttributes(String[] attributes)
+  {
+    AttributeList list = new AttributeList();
+    for (String a : attributes)
+    {
+      Object value = lookup(a);
+      if (value != null)
+        list.add(new Attribute(a, value));
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+  {
+    throw new AttributeNotFoundException("metrics are read only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes)
+  {
+    return new AttributeList();
+  }
+
+  // there are no operations, tell JMX clients so the way they expect
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+  {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo()
+  {
+    List<MBeanAttributeInfo> info = new ArrayList<MBeanAttributeInfo>();
+    for (String name : counters.keySet())
+    {
+      info.add(attribute(name, "long", "total"));
+      info.add(attribute(name + ".rate", "double", "per second over the last 5 s"));
+    }
+    for (String name : gauges.keySet())
+      info.add(attribute(name, "double", "current value"));
+    for (String name : histograms.keySet())
+    {
+      info.add(attribute(name + ".count", "long", "values recorded in the last second"));
+      info.add(attribute(name + ".p50", "long", "median of the last second"));
+      info.add(attribute(name + ".p99", "long", "99th percentile of the last second"));
+      info.add(attribute(name + ".max", "long", "largest value of the last second (bucket upper bound)"));
+      info.add(attribute(name + ".maxEver", "long", "largest value since start"));
+    }
+    return new MBeanInfo(getClass().getName(), "Pulse oximeter pipeline metrics",
+      info.toArray(new MBeanAttributeInfo[info.size()]), null, new MBeanOperationInfo[0], null);
+  }
+
+  private static MBeanAttributeInfo attribute(String name, String type, String description)
+  {
+    return new MBeanAttributeInfo(name, type, description, true, false, false);
+  }
+
+  /************** Metric types **********************/
+
+  public static class Counter
+  {
+    private final LongAdder adder = new LongAdder();
+    private final Gauge source;
+    private final long base;         // total of the counter this one replaced
+    private final RollingRate rolling;
+    public volatile double rate;     // per second over the last 5 s, updated once a second
+
+    Counter(Gauge source, Counter previous)
+    {
+      this.source = source;
+      this.base = previous != null ? previous.total() : 0;
+      this.rolling = previous != null ? previous.rolling : new RollingRate(5000, 5);
+      this.rate = previous != null ? previous.rate : 0;
+    }
+
+    public void add(long n)
+    {
+      adder.add(n);
+    }
+
+    public void increment()
+    {
+      adder.increment();
+    }
+
+    public long total()
+    {
+      return source != null ? base + (long) source.value() : adder.sum();
+    }
+
+    void tick(long now)
+    {
+      rolling.sample(now, total());
+      rate = rolling.perSecond();
+    }
+  }
+
+  /*
+   * Log-linear histogram of non-negative longs (nanoseconds, usually): 16
+   * buckets per power of two, so percentiles are within about 6%. Values of
+   * the last second are found by subtracting the previous tick's counts.
+   */
+  public static class Histogram
+  {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB + SUB;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong maxEver = new AtomicLong();
+    private final long[] previous = new long[BUCKETS];
+    private final long[] window = new long[BUCKETS];
+
+    public volatile long count, p50, p99, max;   // of the last second
+
+    public void record(long value)
+    {
+      if (value < 0)
+        value = 0;
+      buckets.incrementAndGet(bucket(value));
+      long m = maxEver.get();
+      while (value > m && !maxEver.compareAndSet(m, value))
+        m = maxEver.get();
+    }
+
+    public long maxEver()
+    {
+      return maxEver.get();
+    }
+
+    static int bucket(long value)
+    {
+      if (value < SUB)
+        return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB - 1);
+      return (exponent - SUB_BITS + 1) * SUB + sub;
+    }
+
+    // largest value that falls in bucket b
+    static long upperBound(int b)
+    {
+      if (b < SUB)
+        return b;
+      int exponent = b / SUB + SUB_BITS - 1;
+      long sub = b % SUB;
+      return ((SUB + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    void tick()
+    {
+      long n = 0;
+      for (int b = 0; b < BUCKETS; b++)
+      {
+        long now = buckets.get(b);
+        window[b] = now - previous[b];
+        previous[b] = now;
+        n += window[b];
+      }
+      long median = -1, high = -1, top = 0;
+      long seen = 0;
+      for (int b = 0; b < BUCKETS && n > 0; b++)
+      {
+        if (window[b] == 0)
+          continue;
+        seen += window[b];
+        if (median < 0 && seen * 2 >= n)
+          median = upperBound(b);
+        if (high < 0 && seen * 100 >= n * 99)
+          high = upperBound(b);
+        top = upperBound(b);
+      }
+      count = n;
+      p50 = Math.max(0, median);
+      p99 = Math.max(0, high);
+      max = top;
+    }
+  }
+}
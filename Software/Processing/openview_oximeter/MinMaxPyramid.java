@@ -0,0 +1,218 @@
+/*
+ * Append-only min/max summary of one channel's whole history. Level 0 holds
+ * the samples themselves, an entry of level k holds the min and max of 2^k
+ * consecutive samples. Every append updates the current (possibly partial)
+ * entry of each level, so the newest data is visible at every level right
+ * away.
+ *
+ * query() draws any span at any width by picking the coarsest level with at
+ * least one entry per output column, so it reads at most a few entries per
+ * column whether the span is a second or a night. Storage is allocated in
+ * fixed chunks and never copied, about 12 bytes per sample in total.
+ *
+ * One thread appends, any number of threads may query: entries are written
+ * before the sample count is published.
+ */
+public class MinMaxPyramid
+{
+  private static final int CHUNK_BITS = 14;
+  private static final int CHUNK = 1 << CHUNK_BITS;
+  private static final int MAX_LEVELS = 48;
+
+  private final Level[] level = new Level[MAX_LEVELS];
+  private volatile int levels = 1;
+  private volatile long size;
+
+  public int lastLevel;          // level the last query() read from
+
+  // the entry each level is filling, kept by the appending thread
+  private final Range[] current = new Range[MAX_LEVELS];
+
+  public MinMaxPyramid()
+  {
+    level[0] = new Level(true);
+    for (int k = 0; k < MAX_LEVELS; k++)
+      current[k] = new Range();
+  }
+
+  public void append(float v)
+  {
+    long n = size;
+    level[0].set(n, v, v);
+    int top = levels;
+    for (int k = 1; k < top; k++)
+    {
+      long index = n >>> k;
+      if ((n & ((1L << k) - 1)) == 0)
+      {
+        current[k].set(v);
+        level[k].set(index, v, v);
+      }
+      else if (v < current[k].min)
+      {
+        current[k].min = v;
+        level[k].setMin(index, v);
+      }
+      else if (v > current[k].max)
+      {
+        current[k].max = v;
+        level[k].setMax(index, v);
+      }
+      else
+      {
+        // the entries above contain this one, so they don't change either
+        break;
+      }
+    }
+
+    // once the top level has a second entry, start the one above it
+    if (n + 1 > (1L << (top - 1)) && top < MAX_LEVELS)
+    {
+      Level below = level[top - 1];
+      Level above = new Level(false);
+      float lo = Math.min(below.min(0), below.min(1)), hi = Math.max(below.max(0), below.max(1));
+      above.set(0, lo, hi);
+      current[top].min = lo;
+      current[top].max = hi;
+      level[top] = above;
+      levels = top + 1;
+    }
+    size = n + 1;
+  }
+
+  public long size()
+  {
+    return size;
+  }
+
+  public int levels()
+  {
+    return levels;
+  }
+
+  // entries at level k, the last one may still be filling up
+  public long count(int k)
+  {
+    long n = size;
+    return (n + (1L << k) - 1) >>> k;
+  }
+
+  public float min(int k, long index)
+  {
+    return level[k].min(index);
+  }
+
+  public float max(int k, long index)
+  {
+    return level[k].max(index);
+  }
+
+  // Summarises samples from..to-1 into at most columns columns of min/max.
+  // Returns the number of columns filled, which is less than columns when the
+  // span has fewer samples than that.
+  public int query(long from, long to, int columns, float[] colMin, float[] colMax)
+  {
+    long n = size;
+    int top = levels;
+    from = Math.max(0, from);
+    to = Math.min(to, n);
+    long span = to - from;
+    if (span <= 0 || columns <= 0)
+      return 0;
+    if (columns > span)
+      columns = (int) span;
+
+    int k = 0;
+    while (k + 1 < top && (1L << (k + 1)) <= span / columns)
+      k++;
+    lastLevel = k;
+
+    Level l = level[k];
+    for (int c = 0; c < columns; c++)
+    {
+      long first = (from + span * c / columns) >>> k;
+      long last = (from + span * (c + 1) / columns - 1) >>> k;
+      float lo = l.min(first), hi = l.max(first);
+      for (long e = first + 1; e <= last; e++)
+      {
+        lo = Math.min(lo, l.min(e));
+        hi = Math.max(hi, l.max(e));
+      }
+      colMin[c] = lo;
+      colMax[c] = hi;
+    }
+    return columns;
+  }
+
+  // min and max per entry in chunks, level 0 shares one array for both
+  private static class Level
+  {
+    private final boolean raw;
+    private volatile float[][] min = new float[4][];
+    private volatile float[][] max = new float[4][];
+
+    Level(boolean raw)
+    {
+      this.raw = raw;
+      if (raw)
+        max = min;
+    }
+
+    void set(long index, float lo, float hi)
+    {
+      int chunk = (int) (index >>> CHUNK_BITS);
+      int pos = (int) index & (CHUNK - 1);
+      if (chunk == min.length || min[chunk] == null)
+        grow(chunk);
+      min[chunk][pos] = lo;
+      if (!raw)
+        max[chunk][pos] = hi;
+    }
+
+    void setMin(long index, float v)
+    {
+      min[(int) (index >>> CHUNK_BITS)][(int) index & (CHUNK - 1)] = v;
+    }
+
+    void setMax(long index, float v)
+    {
+      max[(int) (index >>> CHUNK_BITS)][(int) index & (CHUNK - 1)] = v;
+    }
+
+    float min(long index)
+    {
+      return min[(int) (index >>> CHUNK_BITS)][(int) index & (CHUNK - 1)];
+    }
+
+    float max(long index)
+    {
+      return max[(int) (index >>> CHUNK_BITS)][(int) index & (CHUNK - 1)];
+    }
+
+    private void grow(int chunk)
+    {
+      float[][] mins = min, maxs = max;
+      if (chunk == mins.length)
+      {
+        mins = java.util.Arrays.copyOf(mins, 2 * mins.length);
+        maxs = raw ? mins : java.util.Arrays.copyOf(maxs, 2 * maxs.length);
+      }
+      mins[chunk] = new float[CHUNK];
+      if (!raw)
+        maxs[chunk] = new float[CHUNK];
+      min = mins;
+      max = maxs;
+    }
+  }
+
+  private static class Range
+  {
+    float min, max;
+
+    void set(float v)
+    {
+      min = v;
+      max = v;
+    }
+  }
+}
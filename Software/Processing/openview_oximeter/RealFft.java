@@ -0,0 +1,128 @@
+/*
+ * Radix-2 FFT of real input, planned once for a fixed size. The N real
+ * samples are packed into N/2 complex ones, put through an iterative complex
+ * FFT and then split into the spectrum of the real signal, which is about
+ * half the work of a complex FFT of the same size.
+ *
+ * Twiddles and the bit reversal order are tabulated in the constructor and
+ * the work arrays are reused, so a transform allocates nothing. Not thread
+ * safe, one instance per thread.
+ */
+public class RealFft
+{
+  public final int size;
+  private final int half;
+
+  private final int[] reverse;           // bit reversed index, for loading the half size input
+  private final float[] cos, sin;        // e^-2*pi*i*m/half for the butterflies, m < half/2
+  private final float[] splitCos, splitSin;   // e^-2*pi*i*k/size for the split, k <= half
+  private final float[] re, im;
+  private float splitRe, splitIm;        // bin computed by split()
+
+  // size must be a power of two, at least 4
+  public RealFft(int size)
+  {
+    if (size < 4 || Integer.bitCount(size) != 1)
+      throw new IllegalArgumentException("FFT size must be a power of two >= 4: " + size);
+    this.size = size;
+    half = size / 2;
+
+    reverse = new int[half];
+    int bits = Integer.numberOfTrailingZeros(half);
+    for (int i = 0; i < half; i++)
+      reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+
+    cos = new float[Math.max(1, half / 2)];
+    sin = new float[cos.length];
+    for (int m = 0; m < half / 2; m++)
+    {
+      double a = -2 * Math.PI * m / half;
+      cos[m] = (float) Math.cos(a);
+      sin[m] = (float) Math.sin(a);
+    }
+    splitCos = new float[half + 1];
+    splitSin = new float[half + 1];
+    for (int k = 0; k <= half; k++)
+    {
+      double a = -2 * Math.PI * k / size;
+      splitCos[k] = (float) Math.cos(a);
+      splitSin[k] = (float) Math.sin(a);
+    }
+    re = new float[half];
+    im = new float[half];
+  }
+
+  // number of output bins, 0 (DC) to size/2 (Nyquist)
+  public int bins()
+  {
+    return half + 1;
+  }
+
+  // Spectrum of x[0..size-1] into outRe/outIm[0..size/2]
+  public void forward(float[] x, float[] outRe, float[] outIm)
+  {
+    transform(x);
+    for (int k = 0; k <= half; k++)
+    {
+      split(k);
+      outRe[k] = splitRe;
+      outIm[k] = splitIm;
+    }
+  }
+
+  // |X[k]|^2 of x[0..size-1] into power[0..size/2]
+  public void power(float[] x, float[] power)
+  {
+    transform(x);
+    for (int k = 0; k <= half; k++)
+    {
+      split(k);
+      power[k] = splitRe * splitRe + splitIm * splitIm;
+    }
+  }
+
+  // complex FFT of z[n] = x[2n] + i x[2n+1] into re/im
+  private void transform(float[] x)
+  {
+    for (int n = 0; n < half; n++)
+    {
+      int r = reverse[n];
+      re[r] = x[2 * n];
+      im[r] = x[2 * n + 1];
+    }
+    for (int len = 2; len <= half; len <<= 1)
+    {
+      int span = len >> 1;
+      int step = half / len;
+      for (int start = 0; start < half; start += len)
+      {
+        for (int j = 0, m = 0; j < span; j++, m += step)
+        {
+          int a = start + j, b = a + span;
+          float wr = cos[m], wi = sin[m];
+          float tr = wr * re[b] - wi * im[b];
+          float ti = wr * im[b] + wi * re[b];
+          re[b] = re[a] - tr;
+          im[b] = im[a] - ti;
+          re[a] += tr;
+          im[a] += ti;
+        }
+      }
+    }
+  }
+
+  // X[k] = E[k] + W^k O[k], with E and O the spectra of the even and odd samples
+  // recovered from Z[k] and conj(Z[half-k])
+  private void split(int k)
+  {
+    int p = k == half ? 0 : k;
+    int q = k == 0 ? 0 : half - k;
+    float zr = re[p], zi = im[p];
+    float cr = re[q], ci = -im[q];
+    float er = 0.5f * (zr + cr), ei = 0.5f * (zi + ci);
+    float or = 0.5f * (zi - ci), oi = -0.5f * (zr - cr);
+    float wr = splitCos[k], wi = splitSin[k];
+    splitRe = er + wr * or - wi * oi;
+    splitIm = ei + wr * oi + wi * or;
+  }
+}
@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+
+/*
+ * Plays back a BinaryRecording. At speed 1 samples come out with the spacing
+ * they were recorded with, at speed N that much faster, and at speed 0 as
+ * fast as the consumer takes them. Delivered samples are stamped with the
+ * current host time, like freshly received ones.
+ */
+public class ReplaySampleSource implements SampleSource
+{
+  public static final double MAX_SPEED = 0;
+
+  private static final int BATCH = 4096;
+
+  private final File file;
+  private final double speed;
+  private final boolean loop;
+
+  private BinaryRecording.Reader reader;
+  private long next;                 // next sample index to deliver
+  private long firstStamp;           // recording stamp of the sample playback (re)started at
+  private long startNanos;           // host time playback (re)started
+
+  private final long[] stamps = new long[BATCH];
+  private final int[] red = new int[BATCH];
+  private final int[] ir = new int[BATCH];
+
+  public ReplaySampleSource(File file, double speed, boolean loop)
+  {
+    this.file = file;
+    this.speed = speed;
+    this.loop = loop;
+  }
+
+  public void open() throws IOException
+  {
+    reader = new BinaryRecording.Reader(file);
+    rewind(0);
+  }
+
+  // Continue playback from sample index
+  public void seek(long index)
+  {
+    rewind(Math.max(0, Math.min(index, reader.sampleCount())));
+  }
+
+  private void rewind(long index)
+  {
+    next = index;
+    firstStamp = index < reader.sampleCount() ? reader.stamp(index) : 0;
+    startNanos = System.nanoTime();
+  }
+
+  public int poll(SampleSource.Sink sink)
+  {
+    long total = reader.sampleCount();
+    if (next >= total)
+    {
+      if (!loop || total == 0)
+        return END_OF_STREAM;
+      rewind(0);
+    }
+
+    int n = (int) Math.min(BATCH, total - next);
+    if (speed != MAX_SPEED)
+    {
+      // only what is due by now at this playback speed, usually a sample or
+      // two, so find those before copying anything
+      long due = firstStamp + (long) ((System.nanoTime() - startNanos) * speed);
+      int k = 0;
+      while (k < n && reader.stamp(next + k) <= due)
+        k++;
+      n = k;
+      if (n == 0)
+        return 0;
+    }
+    n = reader.read(next, stamps, red, ir, n);
+
+    for (int i = 0; i < n; i++)
+    {
+      sink.onSample(System.nanoTime(), red[i], ir[i]);
+    }
+    next += n;
+    return n;
+  }
+
+  public long position()
+  {
+    return next;
+  }
+
+  public long length()
+  {
+    return reader.sampleCount();
+  }
+
+  public void close()
+  {
+    try
+    {
+      if (reader != null)
+        reader.close();
+    }
+    catch (IOException e)
+    {
+      e.printStackTrace();
+    }
+  }
+
+  public String describe()
+  {
+    return "replay " + file.getName();
+  }
+
+  public CesPacketDecoder decoder()
+  {
+    return null;
+  }
+}
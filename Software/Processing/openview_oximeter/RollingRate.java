@@ -0,0 +1,44 @@
+/*
+ * Per second rate of an ever increasing counter over the last few seconds.
+ * sample() can be called as often as convenient (every frame is fine), it
+ * only records a point every windowMillis / slots.
+ */
+public class RollingRate
+{
+  private final long[] times, values;
+  private final long interval;
+  private int head, count;
+
+  public RollingRate(long windowMillis, int slots)
+  {
+    times = new long[slots + 1];
+    values = new long[slots + 1];
+    interval = Math.max(1, windowMillis / slots);
+  }
+
+  public void sample(long nowMillis, long total)
+  {
+    if (count > 0 && nowMillis - times[head] < interval)
+      return;
+    head = (head + 1) % times.length;
+    times[head] = nowMillis;
+    values[head] = total;
+    if (count < times.length)
+      count++;
+  }
+
+  // change per second between the oldest and newest point, 0 until there are two
+  public double perSecond()
+  {
+    if (count < 2)
+      return 0;
+    int oldest = (head - count + 1 + times.length) % times.length;
+    long millis = times[head] - times[oldest];
+    return millis > 0 ? (values[head] - values[oldest]) * 1000.0 / millis : 0;
+  }
+
+  public void clear()
+  {
+    count = 0;
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Sliding window statistics over the last N samples of a channel.
+ *
+ * The window is a ring buffer. Sum and sum of squares are updated as samples
+ * enter and leave, and min/max come from monotonic deques, so every push and
+ * every query is O(1) instead of a scan over the whole window.
+ */
+public class RunningStats
+{
+  private final int capacity;
+  private final float[] window;
+  private long count;                 // total samples pushed
+
+  private double sum, sumSq;
+
+  // monotonic deques, each entry is (sequence number, value)
+  private final long[] minSeq, maxSeq;
+  private final float[] minVal, maxVal;
+  private int minHead, minSize, maxHead, maxSize;
+
+  public RunningStats(int capacity)
+  {
+    this.capacity = capacity;
+    window = new float[capacity];
+    minSeq = new long[capacity];
+    maxSeq = new long[capacity];
+    minVal = new float[capacity];
+    maxVal = new float[capacity];
+  }
+
+  public void push(float x)
+  {
+    int slot = (int) (count % capacity);
+    if (count >= capacity)
+    {
+      float old = window[slot];
+      sum -= old;
+      sumSq -= (double) old * old;
+    }
+    window[slot] = x;
+    sum += x;
+    sumSq += (double) x * x;
+    long seq = count++;
+
+    // refresh the sums from scratch once per window so rounding can't drift
+    if (slot == capacity - 1)
+      resum();
+
+    long oldest = count - capacity;
+
+    while (minSize > 0 && minSeq[minHead] < oldest)
+    {
+      minHead = (minHead + 1) % capacity;
+      minSize--;
+    }
+    while (minSize > 0 && minVal[(minHead + minSize - 1) % capacity] >= x)
+      minSize--;
+    int minTail = (minHead + minSize) % capacity;
+    minSeq[minTail] = seq;
+    minVal[minTail] = x;
+    minSize++;
+
+    while (maxSize > 0 && maxSeq[maxHead] < oldest)
+    {
+      maxHead = (maxHead + 1) % capacity;
+      maxSize--;
+    }
+    while (maxSize > 0 && maxVal[(maxHead + maxSize - 1) % capacity] <= x)
+      maxSize--;
+    int maxTail = (maxHead + maxSize) % capacity;
+    maxSeq[maxTail] = seq;
+    maxVal[maxTail] = x;
+    maxSize++;
+  }
+
+  private void resum()
+  {
+    double s = 0, sq = 0;
+    for (int i = 0; i < capacity; i++)
+    {
+      s += window[i];
+      sq += (double) window[i] * window[i];
+    }
+    sum = s;
+    sumSq = sq;
+  }
+
+  public void clear()
+  {
+    count = 0;
+    sum = sumSq = 0;
+    minHead = minSize = maxHead = maxSize = 0;
+  }
+
+  public int size()
+  {
+    return (int) Math.min(count, capacity);
+  }
+
+  public int capacity()
+  {
+    return capacity;
+  }
+
+  public long count()
+  {
+    return count;
+  }
+
+  public double sum()
+  {
+    return sum;
+  }
+
+  public double mean()
+  {
+    int n = size();
+    return n == 0 ? 0 : sum / n;
+  }
+
+  public double rms()
+  {
+    int n = size();
+    return n == 0 ? 0 : Math.sqrt(sumSq / n);
+  }
+
+  public double variance()
+  {
+    int n = size();
+    if (n == 0)
+      return 0;
+    double m = sum / n;
+    return Math.max(0, sumSq / n - m * m);
+  }
+
+  public double stdDev()
+  {
+    return Math.sqrt(variance());
+  }
+
+  public float min()
+  {
+    return minSize == 0 ? 0 : minVal[minHead];
+  }
+
+  public float max()
+  {
+    return maxSize == 0 ? 0 : maxVal[maxHead];
+  }
+}
@@ -0,0 +1,298 @@
+/*
+ * Acquisition, DSP and rendering for one device, each on its own thread:
+ *
+ *   AcquisitionThread --SampleRing--> DSP thread --SignalFrame.Exchange--> draw()
+ *
+ * The acquisition thread only decodes and offers samples to the ring, the
+ * DSP thread drains the ring through a SignalProcessor and publishes a frame
+ * snapshot every few milliseconds, and the animation thread picks up the
+ * newest frame. No stage takes a lock or waits on another; if the DSP stage
+ * falls behind the ring fills up and samples are counted as dropped.
+ *
+ * Instead of start(), the stages can also be stepped by a DeviceScheduler
+ * through pollSource() and processPending(), which is how many devices share
+ * a fixed number of threads.
+ *
+ * Every sample keeps the host nanoTime its frame was completed at all the way
+ * to the SignalFrame (lastNanos), so once instrumented the pipeline can tell
+ * how old a sample is when the DSP gets it and when it is first on screen,
+ * and how regularly samples arrive in the first place.
+ */
+public class SamplePipeline implements SampleSource.Sink, Runnable
+{
+  private static final int BATCH = 256;
+
+  public final SampleSource source;
+  public final SignalProcessor processor;
+  public final SignalFrame.Exchange frames;
+  private final SampleRing ring;
+
+  // called on the DSP thread after each sample went through the processor
+  private final SampleSource.Sink tap;
+
+  public long publishNanos = 4000000L;   // publish a frame at most this often
+
+  private AcquisitionThread acquisition;
+  private Thread dsp;
+  private volatile boolean running;
+  private volatile boolean ended;
+  private long lastPublish;
+  private boolean dirty;
+  private volatile long processed;
+
+  private Metrics.Counter sampleCount;
+  private Metrics.Histogram pollNanos;
+  private Metrics.Histogram arrivalGap, arrivalJitter, dspLatency, displayLatency, beatLatency;
+  private long periodNanos;
+  private long lastArrival;
+  private long displayedSequence;
+  private int recordedBeats;
+
+  private final long[] stamps = new long[BATCH];
+  private final int[] red = new int[BATCH];
+  private final int[] ir = new int[BATCH];
+
+  public SamplePipeline(SampleSource source, SignalProcessor processor, int queueSize, SampleSource.Sink tap)
+  {
+    this.source = source;
+    this.processor = processor;
+    this.frames = new SignalFrame.Exchange(processor.size);
+    this.ring = new SampleRing(queueSize);
+    this.tap = tap;
+  }
+
+  public void start()
+  {
+    running = true;
+    dsp = new Thread(this, "dsp " + source.describe());
+    dsp.setDaemon(true);
+    dsp.start();
+    acquisition = new AcquisitionThread(this);
+    acquisition.start();
+  }
+
+  public void stop()
+  {
+    running = false;
+    if (acquisition != null)
+      acquisition.shutdown();
+    if (dsp != null)
+      dsp.interrupt();
+  }
+
+  // Waits for the threads stop() asked to finish, so another pipeline can
+  // take over whatever this one's tap was writing to. Not for the animation
+  // thread; returns false if one of them is still running after millis.
+  public boolean awaitStop(long millis) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + millis;
+    if (dsp != null)
+      dsp.join(millis);
+    if (acquisition != null)
+      acquisition.join(Math.max(1, deadline - System.currentTimeMillis()));
+    return (dsp == null || !dsp.isAlive()) && (acquisition == null || !acquisition.isAlive());
+  }
+
+  // acquisition stage, nanos is when the sample's frame was complete
+  public void onSample(long nanos, int r, int i)
+  {
+    if (arrivalGap != null)
+    {
+      if (lastArrival != 0)
+      {
+        long gap = nanos - lastArrival;
+        arrivalGap.record(gap);
+        arrivalJitter.record(Math.abs(gap - periodNanos));
+      }
+      lastArrival = nanos;
+    }
+    ring.offer(nanos, r, i);
+  }
+
+  // Polls the source once, returns how many samples it delivered
+  public int pollSource()
+  {
+    if (ended)
+      return 0;
+    long start = pollNanos != null ? System.nanoTime() : 0;
+    int n = source.poll(this);
+    if (n == SampleSource.END_OF_STREAM)
+    {
+      ended = true;
+      return 0;
+    }
+    if (n > 0 && pollNanos != null)
+      pollNanos.record(System.nanoTime() - start);
+    return n;
+  }
+
+  // DSP stage, processes what is queued and publishes a frame when one is due.
+  // Returns how many samples were processed.
+  public int processPending()
+  {
+    int n = ring.drainTo(stamps, red, ir, BATCH);
+    for (int k = 0; k < n; k++)
+    {
+      processor.process(stamps[k], red[k], ir[k]);
+      if (beatLatency != null && processor.beats != recordedBeats)
+      {
+        recordedBeats = processor.beats;
+        beatLatency.record(processor.heartRate.lastLatencyNanos);
+      }
+      if (tap != null)
+        tap.onSample(stamps[k], red[k], ir[k]);
+    }
+    if (n > 0)
+    {
+      processed += n;
+      dirty = true;
+      if (sampleCount != null)
+        sampleCount.add(n);
+      if (dspLatency != null)
+      {
+        long done = System.nanoTime();
+        for (int k = 0; k < n; k++)
+          dspLatency.record(done - stamps[k]);
+      }
+    }
+
+    long now = System.nanoTime();
+    if (dirty && now - lastPublish >= publishNanos)
+    {
+      processor.snapshot(frames.back());
+      frames.publish();
+      lastPublish = now;
+      dirty = false;
+    }
+    return n;
+  }
+
+  public void run()
+  {
+    try
+    {
+      while (running)
+      {
+        if (processPending() == 0)
+          Thread.sleep(1);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // shutdown
+    }
+  }
+
+  // Called by whoever draws frames, right after frame went on screen. Records
+  // the age of its newest sample, once per published frame.
+  public void displayed(SignalFrame frame)
+  {
+    if (displayLatency == null || frame.sequence == displayedSequence || frame.samples == 0)
+      return;
+    displayedSequence = frame.sequence;
+    displayLatency.record(System.nanoTime() - frame.lastNanos);
+  }
+
+  // true once a finite source (a replay without loop) has run out
+  public boolean ended()
+  {
+    return ended;
+  }
+
+  /************** Metrics **********************/
+
+  // Reports samples through the DSP stage, the time to read and decode a
+  // batch, arrival gaps and jitter, sample age at the DSP and on screen, the
+  // time from a beat's sample to the BPM update it caused, queue depths,
+  // drops and (if the source has one) the decoder's framing counters as
+  // prefix.* metrics. Call before the pipeline starts.
+  public void instrument(Metrics metrics, String prefix)
+  {
+    sampleCount = metrics.counter(prefix + ".samples");
+    pollNanos = metrics.histogram(prefix + ".decode.nanos");
+    arrivalGap = metrics.histogram(prefix + ".arrival.gap.nanos");
+    arrivalJitter = metrics.histogram(prefix + ".arrival.jitter.nanos");      // |gap - sample period|
+    dspLatency = metrics.histogram(prefix + ".latency.dsp.nanos");
+    beatLatency = metrics.histogram(prefix + ".latency.beat.nanos");
+    displayLatency = metrics.histogram(prefix + ".latency.display.nanos");
+    periodNanos = (long) (1e9 / processor.sampleRate);
+    metrics.gauge(prefix + ".queue.acquisition", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return acquisitionDepth();
+      }
+    });
+    metrics.gauge(prefix + ".queue.frames", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return frameDepth();
+      }
+    });
+    metrics.cumulative(prefix + ".dropped", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return dropped();
+      }
+    });
+
+    final CesPacketDecoder decoder = source.decoder();
+    if (decoder == null)
+      return;
+    metrics.cumulative(prefix + ".framing.bytes", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return decoder.bytes();
+      }
+    });
+    metrics.cumulative(prefix + ".framing.ok", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return decoder.framesOk();
+      }
+    });
+    metrics.cumulative(prefix + ".framing.errors", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return decoder.badStop() + decoder.lengthErrors();
+      }
+    });
+    metrics.cumulative(prefix + ".framing.resync", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return decoder.resyncBytes();
+      }
+    });
+  }
+
+  /************** Queue depths **********************/
+
+  // samples decoded but not yet processed
+  public int acquisitionDepth()
+  {
+    return ring.size();
+  }
+
+  // frames published but not yet drawn
+  public int frameDepth()
+  {
+    return frames.depth();
+  }
+
+  public long dropped()
+  {
+    return ring.dropped();
+  }
+
+  // samples through the DSP stage so far, readable from any thread
+  public long processed()
+  {
+    return processed;
+  }
+}
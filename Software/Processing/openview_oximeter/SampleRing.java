@@ -0,0 +1,80 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bounded single-producer / single-consumer ring of samples. Each slot holds
+ * a timestamp (or index) and two channel values in primitive arrays, so
+ * handing a sample from one thread to another allocates nothing and takes no
+ * lock. When the ring is full offer() fails and the sample is counted as
+ * dropped instead of blocking the producer.
+ *
+ * The channels are ints so the 32-bit counts from the device pass through
+ * exactly, a float only holds integers up to 2^24. Turning counts into volts
+ * is the DSP stage's job.
+ */
+public class SampleRing
+{
+  private final int mask;
+  private final long[] stamps;
+  private final int[] ch0, ch1;
+
+  private final AtomicLong head = new AtomicLong();   // next slot to read, written by the consumer
+  private final AtomicLong tail = new AtomicLong();   // next slot to write, written by the producer
+  private volatile long dropped;                      // written by the producer only
+
+  // capacity is rounded up to a power of two
+  public SampleRing(int capacity)
+  {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    mask = size - 1;
+    stamps = new long[size];
+    ch0 = new int[size];
+    ch1 = new int[size];
+  }
+
+  public boolean offer(long stamp, int a, int b)
+  {
+    long t = tail.get();
+    if (t - head.get() > mask)
+    {
+      dropped++;
+      return false;
+    }
+    int i = (int) (t & mask);
+    stamps[i] = stamp;
+    ch0[i] = a;
+    ch1[i] = b;
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  // Copies up to max queued samples into the given arrays, returns how many
+  public int drainTo(long[] outStamps, int[] outA, int[] outB, int max)
+  {
+    long h = head.get();
+    int n = (int) Math.min(tail.get() - h, max);
+    for (int k = 0; k < n; k++)
+    {
+      int i = (int) ((h + k) & mask);
+      outStamps[k] = stamps[i];
+      outA[k] = ch0[i];
+      outB[k] = ch1[i];
+    }
+    head.lazySet(h + n);
+    return n;
+  }
+
+  public int size()
+  {
+    return (int) (tail.get() - head.get());
+  }
+
+  public int capacity()
+  {
+    return mask + 1;
+  }
+
+  public long dropped()
+  {
+    return dropped;
+  }
+}
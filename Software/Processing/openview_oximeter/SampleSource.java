@@ -0,0 +1,31 @@
+import java.io.IOException;
+
+/*
+ * Where RED/IR samples come from: the board on a serial port, a recorded
+ * session, or the synthetic generator. Sources are polled rather than
+ * running their own threads, so the same source can be driven by a
+ * dedicated AcquisitionThread or by a shared worker.
+ */
+public interface SampleSource
+{
+  // Receives decoded samples, nanos is the host System.nanoTime() of the sample
+  interface Sink
+  {
+    void onSample(long nanos, int red, int ir);
+  }
+
+  int END_OF_STREAM = -1;
+
+  void open() throws IOException;
+
+  // Hands every sample that is available right now to sink without blocking.
+  // Returns how many were delivered, or END_OF_STREAM once the source is used up.
+  int poll(Sink sink);
+
+  void close();
+
+  String describe();
+
+  // Framing counters of the source's CES decoder, null if it doesn't decode frames
+  CesPacketDecoder decoder();
+}
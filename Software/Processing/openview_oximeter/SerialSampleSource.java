@@ -0,0 +1,87 @@
+import processing.core.PApplet;
+import processing.serial.Serial;
+
+/*
+ * Samples from the board on a serial port. Whatever the port has buffered is
+ * read in one chunk and run through the CES packet decoder.
+ */
+public class SerialSampleSource implements SampleSource, CesPacketDecoder.PacketListener
+{
+  private final PApplet parent;
+  private final String portName;
+  private final int baudRate;
+
+  private Serial port;
+  private final byte[] chunk = new byte[4096];
+  private final CesPacketDecoder decoder = new CesPacketDecoder(64, this);
+
+  private SampleSource.Sink sink;
+  private int delivered;
+
+  public SerialSampleSource(PApplet parent, String portName, int baudRate)
+  {
+    this.parent = parent;
+    this.portName = portName;
+    this.baudRate = baudRate;
+  }
+
+  public void open()
+  {
+    port = new Serial(parent, portName, baudRate);
+    port.clear();
+  }
+
+  // A port that fails under us (cable pulled) ends the stream, so the
+  // SourceConnector can open it again
+  public int poll(SampleSource.Sink sink)
+  {
+    int len;
+    try
+    {
+      if (port.available() <= 0)
+        return 0;
+      len = port.readBytes(chunk);
+    }
+    catch (RuntimeException e)
+    {
+      return END_OF_STREAM;
+    }
+    this.sink = sink;
+    delivered = 0;
+    decoder.process(chunk, 0, len);
+    return delivered;
+  }
+
+  public void onPacket(int pktType, int[] words, int wordCount)
+  {
+    if (pktType == CesPacketDecoder.CES_CMDIF_TYPE_DATA && wordCount >= 2)
+    {
+      sink.onSample(System.nanoTime(), words[0], words[1]);
+      delivered++;
+    }
+  }
+
+  public void close()
+  {
+    if (port == null)
+      return;
+    try
+    {
+      port.stop();
+    }
+    catch (RuntimeException e)
+    {
+      // already gone with the device
+    }
+  }
+
+  public String describe()
+  {
+    return portName;
+  }
+
+  public CesPacketDecoder decoder()
+  {
+    return decoder;
+  }
+}
@@ -0,0 +1,255 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/*
+ * Writes session samples to disk on a background thread.
+ *
+ * log() only puts the sample in a bounded SampleRing and never touches the
+ * file, so the acquisition thread is never held up by disk I/O. The writer
+ * thread drains the ring in batches, flushes once enough records are pending
+ * or enough time has passed, and starts a new file when the current one gets
+ * too big or too old. Samples that arrive while the ring is full, or after
+ * the writer has stopped on an I/O error, are dropped and counted, and so
+ * are the ones the error left unwritten in the batch and in the ring.
+ *
+ * Values are queued as ints, so raw counts reach the file exactly. Filtered
+ * values logged as floats travel as their bits and TextFormat turns them back.
+ */
+public class SessionLogger implements Runnable
+{
+  // How samples are laid out in the file
+  public interface Format
+  {
+    void open(File file) throws IOException;
+    void write(long stamp, int a, int b) throws IOException;
+    void flush() throws IOException;
+    void close() throws IOException;
+    long bytesWritten();
+  }
+
+  private static final int BATCH = 256;
+
+  private final File baseFile;
+  private final Format format;
+  private final SampleRing ring;
+
+  public long flushMillis = 1000;        // flush at least this often while data is pending
+  public int flushRecords = 1024;        // ... or once this many records are pending
+  public long rotateBytes = 0;           // start a new file past this size, 0 = never
+  public long rotateMillis = 0;          // start a new file after this long, 0 = never
+
+  private final long[] stamps = new long[BATCH];
+  private final int[] valuesA = new int[BATCH];
+  private final int[] valuesB = new int[BATCH];
+
+  private Thread thread;
+  private volatile boolean running;
+  private volatile File currentFile;
+  private volatile IOException lastError;
+  private volatile long refused;         // offered while not running, written by the producer only
+  private volatile long lost;            // queued but never written, written by the writer thread only
+  private int fileCount;
+  private long fileOpened;
+
+  public SessionLogger(File baseFile, Format format, int queueSize)
+  {
+    this.baseFile = baseFile;
+    this.format = format;
+    this.ring = new SampleRing(queueSize);
+  }
+
+  public void start() throws IOException
+  {
+    openNext();
+    running = true;
+    thread = new Thread(this, "session-logger");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Stops accepting samples, writes out what is queued and closes the file
+  public void stop()
+  {
+    running = false;
+    if (thread != null)
+    {
+      try
+      {
+        thread.join(5000);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // Called from the acquisition thread, returns false if the sample was dropped
+  public boolean log(long stamp, int a, int b)
+  {
+    if (!running)
+    {
+      refused++;
+      return false;
+    }
+    return ring.offer(stamp, a, b);
+  }
+
+  // Filtered values for TextFormat, queued as their bits
+  public boolean log(long stamp, float a, float b)
+  {
+    return log(stamp, Float.floatToRawIntBits(a), Float.floatToRawIntBits(b));
+  }
+
+  public long dropped()
+  {
+    return ring.dropped() + refused + lost;
+  }
+
+  public int backlog()
+  {
+    return ring.size();
+  }
+
+  public File currentFile()
+  {
+    return currentFile;
+  }
+
+  // why the writer stopped on its own, null while it is fine
+  public IOException lastError()
+  {
+    return lastError;
+  }
+
+  public void run()
+  {
+    int pending = 0;
+    int n = 0, written = 0;
+    long lastFlush = System.currentTimeMillis();
+    try
+    {
+      while (running || ring.size() > 0)
+      {
+        n = ring.drainTo(stamps, valuesA, valuesB, BATCH);
+        for (written = 0; written < n; written++)
+        {
+          format.write(stamps[written], valuesA[written], valuesB[written]);
+        }
+        pending += n;
+
+        long now = System.currentTimeMillis();
+        if (pending >= flushRecords || (pending > 0 && now - lastFlush >= flushMillis))
+        {
+          format.flush();
+          pending = 0;
+          lastFlush = now;
+        }
+
+        if ((rotateBytes > 0 && format.bytesWritten() >= rotateBytes)
+          || (rotateMillis > 0 && now - fileOpened >= rotateMillis))
+        {
+          format.close();
+          openNext();
+          pending = 0;
+        }
+
+        if (n == 0)
+          Thread.sleep(5);
+      }
+    }
+    catch (IOException e)
+    {
+      lastError = e;
+      lost += n - written;
+      e.printStackTrace();
+    }
+    catch (InterruptedException e)
+    {
+      // stopped
+    }
+    finally
+    {
+      running = false;
+      // whatever is still queued will not be written any more
+      int left;
+      while ((left = ring.drainTo(stamps, valuesA, valuesB, BATCH)) > 0)
+        lost += left;
+      try
+      {
+        format.close();
+      }
+      catch (IOException e)
+      {
+        if (lastError == null)
+          lastError = e;
+      }
+    }
+  }
+
+  private void openNext() throws IOException
+  {
+    File file = fileCount == 0 ? baseFile : rotatedName(baseFile, fileCount);
+    fileCount++;
+    format.open(file);
+    currentFile = file;
+    fileOpened = System.currentTimeMillis();
+  }
+
+  // session.txt -> session-1.txt, session-2.txt, ...
+  static File rotatedName(File base, int n)
+  {
+    String name = base.getName();
+    int dot = name.lastIndexOf('.');
+    String rotated = dot > 0 ? name.substring(0, dot) + "-" + n + name.substring(dot) : name + "-" + n;
+    return new File(base.getParentFile(), rotated);
+  }
+
+  /*
+   * The "index , value1 , value2" text lines the sketch has always written,
+   * fed through log(long, float, float)
+   */
+  public static class TextFormat implements Format
+  {
+    private BufferedWriter writer;
+    private final StringBuilder line = new StringBuilder(64);
+    private char[] chars = new char[64];
+    private long bytes;
+
+    public void open(File file) throws IOException
+    {
+      writer = new BufferedWriter(new FileWriter(file, true), 1 << 16);
+      bytes = file.length();
+    }
+
+    public void write(long stamp, int a, int b) throws IOException
+    {
+      line.setLength(0);
+      line.append(stamp).append(" , ").append(Float.intBitsToFloat(a)).append(" , ").append(Float.intBitsToFloat(b));
+      int len = line.length();
+      if (len > chars.length)
+        chars = new char[len * 2];
+      line.getChars(0, len, chars, 0);
+      writer.write(chars, 0, len);
+      writer.newLine();
+      bytes += len + 1;
+    }
+
+    public void flush() throws IOException
+    {
+      writer.flush();
+    }
+
+    public void close() throws IOException
+    {
+      writer.close();
+    }
+
+    public long bytesWritten()
+    {
+      return bytes;
+    }
+  }
+}
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * What draw() shows for one device: a copy of the plotted windows plus the
+ * numbers around them, taken by the DSP stage with SignalProcessor.snapshot().
+ * Once published a frame is not written again until the consumer hands it
+ * back, so draw() never sees a half updated window.
+ */
+public class SignalFrame
+{
+  public final float[] xdata, ydata, zdata;
+  public float time;
+  public int arrayIndex;
+
+  public float redMin, redMax, redAvg, redRms;
+  public float irMin, irMax;
+  public float spo2;             // 0 while there is no current estimate
+  public int spo2Count;
+  public float bpm;
+  public int beats;
+  public long samples;
+  public long lastNanos;         // host nanoTime the newest sample's frame was completed at
+
+  // SignalQuality of the current window, and readings it held back
+  public float quality, perfusion, skewness, correlation;
+  public int clipped;
+  public int spo2Rejected, beatsRejected;
+
+  // SpectralEstimator results
+  public float spectralHz, spectralBpm, spectralSpo2;
+  public float spectralRedAC, spectralIrAC;
+  public int spectralCount;
+
+  long sequence;
+
+  public SignalFrame(int size)
+  {
+    xdata = new float[size];
+    ydata = new float[size];
+    zdata = new float[size];
+  }
+
+  /*
+   * Lock-free triple buffer between one producer and one consumer. The
+   * producer fills back() and publish()es it, the consumer takes the newest
+   * published frame with latest(). Neither side ever waits, and at most one
+   * frame is pending at a time (older ones are simply overwritten).
+   */
+  public static class Exchange
+  {
+    private final AtomicReference<SignalFrame> middle;
+    private SignalFrame back, front;
+    private long published;
+
+    public Exchange(int size)
+    {
+      back = new SignalFrame(size);
+      front = new SignalFrame(size);
+      middle = new AtomicReference<SignalFrame>(new SignalFrame(size));
+    }
+
+    // producer side
+    public SignalFrame back()
+    {
+      return back;
+    }
+
+    public void publish()
+    {
+      back.sequence = ++published;
+      back = middle.getAndSet(back);
+    }
+
+    // consumer side, returns the newest frame (the same one again if nothing new)
+    public SignalFrame latest()
+    {
+      if (middle.get().sequence > front.sequence)
+        front = middle.getAndSet(front);
+      return front;
+    }
+
+    // frames published but not yet taken by the consumer (0 or 1)
+    public int depth()
+    {
+      return middle.get().sequence > front.sequence ? 1 : 0;
+    }
+  }
+}
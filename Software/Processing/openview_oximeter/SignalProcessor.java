@@ -0,0 +1,189 @@
+/*
+ * Per-sample signal processing for one oximeter: band-pass/notch filtering,
+ * the plotted RED/IR windows, window statistics, the SpO2 estimate and heart rate
+ * (in the time domain, and from the spectrum as a cross-check), gated by a
+ * signal quality index so motion and a loose finger don't show up as
+ * readings. This is the body
+ * of the sketch's old ecsProcessSample(), pulled out so it can run on its own
+ * thread (and outside the sketch) without touching any PApplet state.
+ *
+ * Not thread safe, one thread calls process(); other threads get copies
+ * through snapshot().
+ */
+public class SignalProcessor
+{
+  public static final double COUNTS_TO_VOLTS = 0.0057220458984375;
+
+  public final int size;
+  public final float sampleRate;
+
+  final float[] xdata, ydata, zdata;
+  final RunningStats redStats, irStats;          // AC values as plotted, for autoscale and stats
+  BiquadFilterBank filters;                      // channel 0 RED, channel 1 IR
+  final SpO2Estimator spo2Estimator;
+  final HeartRateDetector heartRate;
+  final SpectralEstimator spectrum;
+  final SignalQuality quality;
+
+  int arrayIndex = 1;
+  float time = 0;
+
+  // results of the last process() call
+  public int sampleIndex;
+  public float value1, value2;
+  public float RedAC, RedDC, IrAC, IrDC;
+  public float spo2;                // 0 while there is no current estimate
+  public int spo2Count;             // bumped every time spo2 is updated or expires
+  public float spo2HoldSeconds = 5; // spo2 expires after this long without an accepted estimate
+  public float bpm;
+  public int beats;                 // beats that updated bpm
+  public int spo2Rejected, beatsRejected;   // held back for poor signal quality
+  public long samples;
+  public long lastNanos;
+  public float spectralBpm, spectralSpo2;
+  public int spectralCount;         // bumped with every spectral estimate
+  private long spo2Sample;          // samples at the last accepted estimate
+
+  public SignalProcessor(int size, float sampleRate)
+  {
+    this(size, sampleRate, size, size / 16);
+  }
+
+  // size is the plotted window, SpO2 is estimated over spo2Window samples every spo2Hop samples
+  public SignalProcessor(int size, float sampleRate, int spo2Window, int spo2Hop)
+  {
+    this.size = size;
+    this.sampleRate = sampleRate;
+    xdata = new float[size];
+    ydata = new float[size];
+    zdata = new float[size];
+    redStats = new RunningStats(size);
+    irStats = new RunningStats(size);
+    spo2Estimator = new SpO2Estimator(spo2Window, spo2Hop);
+    heartRate = new HeartRateDetector(sampleRate);
+    spectrum = new SpectralEstimator(sampleRate);
+    quality = new SignalQuality(spo2Window);
+    filters = new BiquadFilterBank(2, sampleRate, 2, 0.5f, 5, 50);
+
+    for (int i = 0; i < size; i++)
+    {
+      time = time + 2;
+      xdata[i] = time;
+    }
+    time = 0;
+  }
+
+  // Replaces the default 0.5-5 Hz / 50 Hz notch filters, call before the first sample
+  public void setFilters(BiquadFilterBank filters)
+  {
+    this.filters = filters;
+  }
+
+  public void process(long nanos, int data1, int data2)
+  {
+    double receivedVoltage_RED = data1 * COUNTS_TO_VOLTS;
+    double receivedVoltage_IR = data2 * COUNTS_TO_VOLTS;
+
+    time = time + 0.1f;
+    xdata[arrayIndex] = time;
+
+    value1 = filters.process(0, (float) receivedVoltage_RED);
+    value2 = filters.process(1, (float) receivedVoltage_IR);
+    ydata[arrayIndex] = value1;
+    zdata[arrayIndex] = value2;
+    redStats.push(value1);
+    irStats.push(value2);
+    quality.push(data1, data2, value1, value2, (float) receivedVoltage_IR);
+
+    sampleIndex = arrayIndex;
+    arrayIndex++;
+    if (arrayIndex == size)
+    {
+      arrayIndex = 0;
+      time = 0;
+    }
+
+    // estimates from a poor window are dropped, the rest move the reading in
+    // proportion to how clean their window was; a reading that nothing has
+    // confirmed for spo2HoldSeconds (finger off, lasting motion) is withdrawn
+    // the way bpm is once beats stop
+    if (spo2Estimator.push((float) receivedVoltage_RED, (float) receivedVoltage_IR))
+    {
+      float q = quality.evaluate();
+      if (q >= quality.gate)
+      {
+        RedAC = spo2Estimator.RedAC;
+        IrAC = spo2Estimator.IrAC;
+        RedDC = spo2Estimator.RedDC;
+        IrDC = spo2Estimator.IrDC;
+        float v = spo2 == 0 ? spo2Estimator.spo2 : spo2 + q * (spo2Estimator.spo2 - spo2);
+        spo2 = Math.round(v * 100) / 100f;
+        spo2Count++;
+        spo2Sample = samples;
+      } else
+        spo2Rejected++;
+    } else if (spo2 != 0 && samples - spo2Sample > spo2HoldSeconds * sampleRate)
+    {
+      spo2 = 0;
+      spo2Count++;
+    }
+
+    if (spectrum.push((float) receivedVoltage_RED, (float) receivedVoltage_IR))
+    {
+      spectralBpm = spectrum.bpm;
+      spectralSpo2 = spectrum.spo2;
+      spectralCount++;
+    }
+
+    if (heartRate.push(nanos, data2))
+    {
+      float q = quality.evaluate();
+      if (q >= quality.gate)
+      {
+        bpm = bpm == 0 ? heartRate.bpm : bpm + q * (heartRate.bpm - bpm);
+        beats++;
+      } else
+        beatsRejected++;
+    } else if (bpm != 0 && heartRate.lost())
+      bpm = 0;
+
+    samples++;
+    lastNanos = nanos;
+  }
+
+  // Copies everything draw() needs into frame
+  public void snapshot(SignalFrame frame)
+  {
+    System.arraycopy(xdata, 0, frame.xdata, 0, size);
+    System.arraycopy(ydata, 0, frame.ydata, 0, size);
+    System.arraycopy(zdata, 0, frame.zdata, 0, size);
+    frame.time = time;
+    frame.arrayIndex = arrayIndex;
+    frame.redMin = redStats.min();
+    frame.redMax = redStats.max();
+    frame.redAvg = (float) redStats.mean();
+    frame.redRms = (float) redStats.rms();
+    frame.irMin = irStats.min();
+    frame.irMax = irStats.max();
+    frame.spo2 = spo2;
+    frame.spo2Count = spo2Count;
+    frame.bpm = bpm;
+    frame.beats = beats;
+    frame.samples = samples;
+    frame.lastNanos = lastNanos;
+    quality.evaluate();
+    frame.quality = quality.quality;
+    frame.perfusion = quality.perfusion;
+    frame.skewness = quality.skewness;
+    frame.correlation = quality.correlation;
+    frame.clipped = quality.clipped;
+    frame.spo2Rejected = spo2Rejected;
+    frame.beatsRejected = beatsRejected;
+    frame.spectralHz = spectrum.frequency;
+    frame.spectralBpm = spectralBpm;
+    frame.spectralSpo2 = spectralSpo2;
+    frame.spectralRedAC = spectrum.RedAC;
+    frame.spectralIrAC = spectrum.IrAC;
+    frame.spectralCount = spectralCount;
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Signal quality index over a sliding window, updated with every sample.
+ *
+ *   perfusion    IR AC (RMS of the band-passed IR) over IR DC, in %; tiny
+ *                with no finger on the sensor, huge when it moves
+ *   skewness     of the band-passed IR; a pulse is lopsided (the systolic
+ *                edge is much steeper than the fall), noise drowning it is
+ *                symmetric and spikes from motion push it far out
+ *   correlation  of band-passed RED and IR; both see the same pulse, motion
+ *                and ambient light hit them differently
+ *   clipped      raw samples at either end of the 18 bit ADC range
+ *
+ * Every push() only adds the new sample to the window's sums and takes the
+ * oldest one out (the sums are recomputed once per window so rounding can't
+ * drift), so evaluate() is O(1) and can run as often as anyone likes.
+ *
+ * quality is 0 with any clipping or a perfusion index out of range,
+ * otherwise the product of a correlation score and a skewness score, each
+ * 0..1 and ramping linearly between the poor and good limits. Readings are
+ * only worth showing above `gate`.
+ */
+public class SignalQuality
+{
+  public static final int ADC_MAX = (1 << 18) - 1;    // MAX30102 is an 18 bit ADC
+
+  public final int window;
+
+  // tuning
+  public int clipMargin = 16;              // counts from either end that count as clipped
+  public float minPerfusion = 0.05f;       // %, below this there is no pulse to speak of
+  public float maxPerfusion = 20;          // %, above this it is motion, not perfusion
+  public float poorCorrelation = 0.5f, goodCorrelation = 0.9f;
+  public float flatSkew = 0.1f, pulseSkew = 0.5f;     // |skewness| from noise-like to pulse-like
+  public float spikeSkew = 4, steepSkew = 3;          // ... and from pulse-like to spiky
+  public float gate = 0.5f;
+
+  private final float[] red, ir, dc;
+  private final byte[] clip;
+  private long count;
+  private double sumR, sumR2, sumI, sumI2, sumI3, sumRI, sumDc;
+  private int clipCount;
+
+  // results of the last evaluate()
+  public float perfusion;
+  public float skewness;
+  public float correlation;
+  public int clipped;
+  public float quality;
+
+  public SignalQuality(int window)
+  {
+    this.window = window;
+    red = new float[window];
+    ir = new float[window];
+    dc = new float[window];
+    clip = new byte[window];
+  }
+
+  // rawRed/rawIr in ADC counts, acRed/acIr band-passed, irLevel the unfiltered IR in the same units
+  public void push(int rawRed, int rawIr, float acRed, float acIr, float irLevel)
+  {
+    int slot = (int) (count % window);
+    if (count >= window)
+    {
+      float r = red[slot], i = ir[slot];
+      sumR -= r;
+      sumR2 -= r * r;
+      sumI -= i;
+      sumI2 -= i * i;
+      sumI3 -= i * i * i;
+      sumRI -= r * i;
+      sumDc -= dc[slot];
+      clipCount -= clip[slot];
+    }
+    byte c = (byte) (clipped(rawRed) || clipped(rawIr) ? 1 : 0);
+    red[slot] = acRed;
+    ir[slot] = acIr;
+    dc[slot] = irLevel;
+    clip[slot] = c;
+    sumR += acRed;
+    sumR2 += acRed * acRed;
+    sumI += acIr;
+    sumI2 += acIr * acIr;
+    sumI3 += acIr * acIr * acIr;
+    sumRI += acRed * acIr;
+    sumDc += irLevel;
+    clipCount += c;
+    count++;
+
+    if (slot == window - 1)
+      resum();
+  }
+
+  private boolean clipped(int counts)
+  {
+    return counts <= clipMargin || counts >= ADC_MAX - clipMargin;
+  }
+
+  private void resum()
+  {
+    double r1 = 0, r2 = 0, i1 = 0, i2 = 0, i3 = 0, ri = 0, d = 0;
+    for (int k = 0; k < window; k++)
+    {
+      double r = red[k], i = ir[k];
+      r1 += r;
+      r2 += r * r;
+      i1 += i;
+      i2 += i * i;
+      i3 += i * i * i;
+      ri += r * i;
+      d += dc[k];
+    }
+    sumR = r1;
+    sumR2 = r2;
+    sumI = i1;
+    sumI2 = i2;
+    sumI3 = i3;
+    sumRI = ri;
+    sumDc = d;
+  }
+
+  // Works out the figures above from the current window, returns quality
+  public float evaluate()
+  {
+    int n = (int) Math.min(count, window);
+    if (n < window)
+    {
+      perfusion = skewness = correlation = 0;
+      clipped = clipCount;
+      quality = 0;
+      return quality;
+    }
+    double mr = sumR / n, mi = sumI / n;
+    double varR = Math.max(0, sumR2 / n - mr * mr);
+    double varI = Math.max(0, sumI2 / n - mi * mi);
+    double sdI = Math.sqrt(varI);
+    double level = Math.abs(sumDc / n);
+
+    perfusion = level > 0 ? (float) (100 * sdI / level) : 0;
+    double m3 = sumI3 / n - 3 * mi * sumI2 / n + 2 * mi * mi * mi;
+    skewness = varI > 0 ? (float) (m3 / (varI * sdI)) : 0;
+    correlation = varR > 0 && varI > 0 ? (float) ((sumRI / n - mr * mi) / Math.sqrt(varR * varI)) : 0;
+    clipped = clipCount;
+
+    if (clipped > 0 || perfusion < minPerfusion || perfusion > maxPerfusion)
+      quality = 0;
+    else
+    {
+      float skew = Math.abs(skewness);
+      quality = ramp(correlation, poorCorrelation, goodCorrelation)
+        * ramp(skew, flatSkew, pulseSkew) * ramp(-skew, -spikeSkew, -steepSkew);
+    }
+    return quality;
+  }
+
+  // 0 at or below poor, 1 at or above good, linear in between
+  private static float ramp(float x, float poor, float good)
+  {
+    return Math.max(0, Math.min(1, (x - poor) / (good - poor)));
+  }
+
+  public boolean good()
+  {
+    return quality >= gate;
+  }
+
+  public void reset()
+  {
+    count = 0;
+    sumR = sumR2 = sumI = sumI2 = sumI3 = sumRI = sumDc = 0;
+    clipCount = 0;
+  }
+}
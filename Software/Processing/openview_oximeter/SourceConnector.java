@@ -0,0 +1,341 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Opens a SampleSource, starts its pipeline and keeps it connected, all on a
+ * thread of its own so the animation thread never waits on a port.
+ *
+ * Every attempt opens a fresh source on a throwaway thread and waits at most
+ * openTimeoutMillis for it, since a serial driver can hang in open on a
+ * flaky cable. Once the factory has started a pipeline on it, the pipeline is
+ * watched: when it ends or processes nothing for stallMillis the link counts
+ * as lost, the pipeline is stopped and the source opened again. Failures back
+ * off exponentially from retryMillis up to maxRetryMillis; a good connection
+ * starts the backoff over. A lost pipeline's threads are waited for, however
+ * long they take, before the next one starts, so the factory can hand the
+ * new pipeline the same history and counters without them ever having two
+ * writers.
+ *
+ * state() and status() are what the sketch shows, they are only ever read
+ * from outside.
+ */
+public class SourceConnector implements Runnable
+{
+  public enum State
+  {
+    CONNECTING, CONNECTED, RETRYING, FAILED, STOPPED
+  }
+
+  public interface Factory
+  {
+    // A new, unopened source, one per attempt
+    SampleSource create();
+
+    // Builds and starts the pipeline for a source that just opened
+    SamplePipeline start(SampleSource source) throws Exception;
+  }
+
+  private static final long CHECK_MILLIS = 250;
+  private static final long STOP_MILLIS = 2000;
+
+  public final String name;
+  public long openTimeoutMillis = 5000;
+  public long stallMillis = 3000;          // connected but nothing processed for this long counts as lost
+  public long retryMillis = 500;           // first retry, doubled after every failure
+  public long maxRetryMillis = 30000;
+  public boolean reconnect = true;         // false gives up after the first failure or end of stream
+
+  private final Factory factory;
+  private Thread thread;
+  private volatile boolean running;
+  private volatile State state = State.CONNECTING;
+  private volatile String status;
+  private volatile SamplePipeline pipeline;
+
+  private volatile int attempts;           // failed in a row
+  private volatile long connects;          // successful opens, the first one included
+  private volatile long failures;          // failed opens and lost links
+
+  public SourceConnector(String name, Factory factory)
+  {
+    this.name = name;
+    this.factory = factory;
+    this.status = "Opening " + name;
+  }
+
+  public void start()
+  {
+    running = true;
+    thread = new Thread(this, "connector " + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Returns right away, the connector thread finishes on its own
+  public void stop()
+  {
+    running = false;
+    if (thread != null)
+      thread.interrupt();
+    SamplePipeline p = pipeline;
+    if (p != null)
+      p.stop();
+    state = State.STOPPED;
+    status = name + " closed";
+  }
+
+  /************** Connector Thread **********************/
+
+  public void run()
+  {
+    long delay = retryMillis;
+    try
+    {
+      while (running)
+      {
+        String failure = connect();
+        if (failure == null)
+        {
+          if (!running)
+            break;                     // stopped while connecting, there may be no pipeline
+          delay = retryMillis;
+          failure = watch();
+          if (failure == null)
+            break;
+        }
+        if (!running)
+          break;
+        failures++;
+        attempts++;
+        if (!reconnect)
+        {
+          state = State.FAILED;
+          status = name + ": " + failure;
+          break;
+        }
+        state = State.RETRYING;
+        status = name + ": " + failure + ", retrying in " + duration(delay) + " (attempt " + attempts + ")";
+        Thread.sleep(delay);
+        delay = Math.min(delay * 2, maxRetryMillis);
+      }
+    }
+    catch (InterruptedException e)
+    {
+      // stopped
+    }
+  }
+
+  // Opens a fresh source and starts its pipeline, returns why that failed or
+  // null, which is also what a stop() during the attempt gets
+  private String connect() throws InterruptedException
+  {
+    if (attempts > 0)
+      status = "Opening " + name + " again (attempt " + (attempts + 1) + ")";
+    SampleSource source = factory.create();
+    Opener opener = new Opener(source);
+    Thread t = new Thread(opener, "open " + name);
+    t.setDaemon(true);
+    t.start();
+    String failure = opener.await(openTimeoutMillis);
+    if (failure != null)
+      return failure;
+    if (!running)
+    {
+      source.close();
+      return null;
+    }
+
+    SamplePipeline p;
+    try
+    {
+      p = factory.start(source);
+    }
+    catch (Exception e)
+    {
+      source.close();
+      return "could not start (" + describe(e) + ")";
+    }
+    pipeline = p;
+    if (!running)
+    {
+      p.stop();
+      return null;
+    }
+    connects++;
+    attempts = 0;
+    state = State.CONNECTED;
+    status = name + (connects > 1 ? " reconnected" : " is open");
+    return null;
+  }
+
+  // Watches the running pipeline until the link is lost and says why, null
+  // when the connector was stopped instead
+  private String watch() throws InterruptedException
+  {
+    SamplePipeline p = pipeline;
+    long progress = p.processed();
+    long lastProgress = System.currentTimeMillis();
+    while (running)
+    {
+      Thread.sleep(CHECK_MILLIS);
+      if (p.ended())
+      {
+        halt(p);
+        return "end of stream";
+      }
+      long now = System.currentTimeMillis();
+      long n = p.processed();
+      if (n != progress)
+      {
+        progress = n;
+        lastProgress = now;
+      }
+      else if (now - lastProgress >= stallMillis)
+      {
+        halt(p);
+        return "no data for " + duration(now - lastProgress);
+      }
+    }
+    return null;
+  }
+
+  // Stops the pipeline and waits for its threads for as long as it takes, the
+  // next one must not start on the same history while this one still writes
+  private void halt(SamplePipeline p) throws InterruptedException
+  {
+    p.stop();
+    long waited = 0;
+    while (!p.awaitStop(STOP_MILLIS))
+    {
+      if (!running)
+        return;
+      waited += STOP_MILLIS;
+      state = State.RETRYING;
+      status = name + ": waiting " + duration(waited) + " for the old pipeline to stop";
+      if (waited == STOP_MILLIS)
+        System.err.println("Pipeline " + p.source.describe() + " did not stop within " + duration(STOP_MILLIS));
+    }
+  }
+
+  /*
+   * Opens a source on its own thread, so an open that hangs only costs that
+   * thread. A source that opens after await() gave up on it is closed again
+   * rather than left holding the port.
+   */
+  private static class Opener implements Runnable
+  {
+    private final SampleSource source;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private String failure;
+    private boolean abandoned;
+
+    Opener(SampleSource source)
+    {
+      this.source = source;
+    }
+
+    public void run()
+    {
+      String f = null;
+      try
+      {
+        source.open();
+      }
+      catch (Exception e)
+      {
+        f = describe(e);
+      }
+      synchronized (this)
+      {
+        failure = f;
+        if (abandoned && f == null)
+          source.close();
+        done.countDown();
+      }
+    }
+
+    // null once the source is open, otherwise why it isn't
+    String await(long timeoutMillis) throws InterruptedException
+    {
+      try
+      {
+        done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      finally
+      {
+        synchronized (this)
+        {
+          if (done.getCount() != 0)
+            abandoned = true;
+        }
+      }
+      synchronized (this)
+      {
+        return abandoned ? "open timed out after " + duration(timeoutMillis) : failure;
+      }
+    }
+  }
+
+  private static String describe(Exception e)
+  {
+    return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+  }
+
+  private static String duration(long millis)
+  {
+    return millis < 1000 ? millis + " ms" : Math.round(millis / 1000.0) + " s";
+  }
+
+  /************** Status **********************/
+
+  public State state()
+  {
+    return state;
+  }
+
+  public String status()
+  {
+    return status;
+  }
+
+  // the pipeline of the current connection, null before the first one
+  public SamplePipeline pipeline()
+  {
+    return pipeline;
+  }
+
+  public long connects()
+  {
+    return connects;
+  }
+
+  public long failures()
+  {
+    return failures;
+  }
+
+  public void instrument(Metrics metrics, String prefix)
+  {
+    metrics.cumulative(prefix + ".connects", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return connects();
+      }
+    });
+    metrics.cumulative(prefix + ".failures", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return failures();
+      }
+    });
+    metrics.gauge(prefix + ".connected", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return state == State.CONNECTED ? 1 : 0;
+      }
+    });
+  }
+}
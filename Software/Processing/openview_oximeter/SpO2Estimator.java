@@ -0,0 +1,110 @@
+/*
+ * Streaming ratio-of-ratios SpO2.
+ *
+ * Keeps the last `window` RED and IR samples with their running sum and sum
+ * of squares, so the DC level (mean) and AC level (RMS around the mean) of
+ * each channel are available in O(1) at any time. Every `hop` samples, once
+ * the window is full, a new estimate is produced:
+ *
+ *   R = (RedAC / RedDC) / (IrAC / IrDC),  SpO2 = 110 - 25 R
+ *
+ * A short hop gives sub-second updates without any per-update rescan.
+ */
+public class SpO2Estimator
+{
+  public final int window;
+  public final int hop;
+
+  private final float[] red, ir;
+  private double redSum, redSumSq, irSum, irSumSq;
+  private long count;
+  private int sinceUpdate;
+
+  public float RedAC, RedDC, IrAC, IrDC;
+  public float ratio;
+  public float spo2;
+  public int updates;
+
+  public SpO2Estimator(int window, int hop)
+  {
+    this.window = window;
+    this.hop = hop;
+    red = new float[window];
+    ir = new float[window];
+  }
+
+  // Adds one sample, returns true when a new estimate is ready
+  public boolean push(float r, float i)
+  {
+    int slot = (int) (count % window);
+    if (count >= window)
+    {
+      float oldR = red[slot], oldI = ir[slot];
+      redSum -= oldR;
+      redSumSq -= (double) oldR * oldR;
+      irSum -= oldI;
+      irSumSq -= (double) oldI * oldI;
+    }
+    red[slot] = r;
+    ir[slot] = i;
+    redSum += r;
+    redSumSq += (double) r * r;
+    irSum += i;
+    irSumSq += (double) i * i;
+    count++;
+
+    // refresh the sums from scratch once per window so rounding can't drift
+    if (slot == window - 1)
+      resum();
+
+    if (count < window || ++sinceUpdate < hop)
+      return false;
+    sinceUpdate = 0;
+    update();
+    return true;
+  }
+
+  private void update()
+  {
+    double redMean = redSum / window;
+    double irMean = irSum / window;
+    RedDC = (float) redMean;
+    IrDC = (float) irMean;
+    RedAC = (float) Math.sqrt(Math.max(0, redSumSq / window - redMean * redMean));
+    IrAC = (float) Math.sqrt(Math.max(0, irSumSq / window - irMean * irMean));
+
+    ratio = (RedAC / Math.abs(RedDC)) / (IrAC / Math.abs(IrDC));
+
+    /********  Emprical Formalae  *********/
+    //float SpO2 = 10.0002*(value)-52.887*(value) + 26.817*(value) + 98.293;
+    //  float SpO2 =((0.81-0.18*(value))/(0.73+0.11*(value)));
+    float SpO2 = 110 - 25 * ratio;
+
+    SpO2 = (int) (SpO2 * 100);
+    spo2 = SpO2 / 100;
+    updates++;
+  }
+
+  private void resum()
+  {
+    double rs = 0, rsq = 0, is = 0, isq = 0;
+    for (int k = 0; k < window; k++)
+    {
+      rs += red[k];
+      rsq += (double) red[k] * red[k];
+      is += ir[k];
+      isq += (double) ir[k] * ir[k];
+    }
+    redSum = rs;
+    redSumSq = rsq;
+    irSum = is;
+    irSumSq = isq;
+  }
+
+  public void reset()
+  {
+    count = 0;
+    sinceUpdate = 0;
+    redSum = redSumSq = irSum = irSumSq = 0;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Heart rate and SpO2 from the spectrum instead of the waveform (Welch's
+ * method). The last `segment` RED and IR samples are kept in rings; every
+ * `hop` samples the current segment of each channel has its mean removed,
+ * is Hann windowed and transformed, and its power spectrum replaces the
+ * oldest of the last `averaged` ones. The average of those is what the
+ * estimate is read from:
+ *
+ *   - the strongest IR bin between minHz and maxHz is the cardiac frequency,
+ *     refined by a parabola through it and its neighbours
+ *   - each channel's AC amplitude is the power of that peak (three bins,
+ *     so it doesn't depend on where between bins the peak falls)
+ *   - R and SpO2 use the same calibration as SpO2Estimator, with the
+ *     segment mean as DC
+ *
+ * Noise spread over other frequencies no longer adds to the AC levels the
+ * way it does in the time domain RMS. All buffers are allocated up front;
+ * push() allocates nothing.
+ */
+public class SpectralEstimator
+{
+  public final float sampleRate;
+  public final int segment;
+  public final int hop;
+  public final int averaged;
+  public final float minHz, maxHz;
+
+  private final RealFft fft;
+  private final float[] window;
+  private final float windowPower;       // sum of squared window values
+  private final float[] red, ir;         // rings of the last segment samples
+  private final float[] work;
+  private final float[][] redPower, irPower;   // last `averaged` periodograms
+  private final float[] redMean, irMean;       // ... and their average
+  private final int lowBin, highBin;
+  private long count;
+  private int sinceUpdate;
+  private int periodograms, nextPeriodogram;
+
+  public float frequency;       // Hz, 0 until the first estimate
+  public float bpm;
+  public float RedAC, RedDC, IrAC, IrDC;
+  public float ratio;
+  public float spo2;
+  public int updates;
+
+  // segment is rounded up to a power of two, hop <= 0 is half a segment
+  public SpectralEstimator(float sampleRate, int segment, int hop, int averaged, float minHz, float maxHz)
+  {
+    this.sampleRate = sampleRate;
+    this.segment = Integer.highestOneBit(Math.max(4, segment - 1)) << 1;
+    this.hop = hop > 0 ? hop : this.segment / 2;
+    this.averaged = averaged;
+    this.minHz = minHz;
+    this.maxHz = maxHz;
+
+    fft = new RealFft(this.segment);
+    window = new float[this.segment];
+    float sq = 0;
+    for (int n = 0; n < this.segment; n++)
+    {
+      window[n] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * n / this.segment));
+      sq += window[n] * window[n];
+    }
+    windowPower = sq;
+
+    red = new float[this.segment];
+    ir = new float[this.segment];
+    work = new float[this.segment];
+    int bins = fft.bins();
+    redPower = new float[averaged][bins];
+    irPower = new float[averaged][bins];
+    redMean = new float[bins];
+    irMean = new float[bins];
+    // keep a neighbour on both sides of any peak for the interpolation
+    lowBin = Math.max(1, (int) Math.floor(minHz * this.segment / sampleRate));
+    highBin = Math.min(bins - 2, (int) Math.ceil(maxHz * this.segment / sampleRate));
+  }
+
+  // About 5 s segments, 50% overlap, 4 averaged, 0.5-4 Hz (30-240 BPM)
+  public SpectralEstimator(float sampleRate)
+  {
+    this(sampleRate, Math.round(5 * sampleRate), 0, 4, 0.5f, 4);
+  }
+
+  // Adds one sample, returns true when a new estimate is ready
+  public boolean push(float r, float i)
+  {
+    int slot = (int) (count % segment);
+    red[slot] = r;
+    ir[slot] = i;
+    count++;
+    if (count < segment || ++sinceUpdate < hop)
+      return false;
+    sinceUpdate = 0;
+    update();
+    return true;
+  }
+
+  private void update()
+  {
+    int start = (int) (count % segment);       // oldest sample in the rings
+    RedDC = periodogram(red, start, redPower[nextPeriodogram]);
+    IrDC = periodogram(ir, start, irPower[nextPeriodogram]);
+    nextPeriodogram = (nextPeriodogram + 1) % averaged;
+    periodograms = Math.min(averaged, periodograms + 1);
+
+    for (int k = lowBin - 1; k <= highBin + 1; k++)
+    {
+      float rs = 0, is = 0;
+      for (int p = 0; p < periodograms; p++)
+      {
+        rs += redPower[p][k];
+        is += irPower[p][k];
+      }
+      redMean[k] = rs / periodograms;
+      irMean[k] = is / periodograms;
+    }
+
+    int peak = lowBin;
+    for (int k = lowBin + 1; k <= highBin; k++)
+    {
+      if (irMean[k] > irMean[peak])
+        peak = k;
+    }
+
+    // parabola through the magnitudes around the peak
+    double a = Math.sqrt(irMean[peak - 1]), b = Math.sqrt(irMean[peak]), c = Math.sqrt(irMean[peak + 1]);
+    double denominator = a - 2 * b + c;
+    double offset = denominator < 0 ? 0.5 * (a - c) / denominator : 0;
+    frequency = (float) ((peak + offset) * sampleRate / segment);
+    bpm = 60 * frequency;
+
+    RedAC = amplitude(redMean, peak);
+    IrAC = amplitude(irMean, peak);
+    ratio = (RedAC / Math.abs(RedDC)) / (IrAC / Math.abs(IrDC));
+    float SpO2 = 110 - 25 * ratio;
+    SpO2 = (int) (SpO2 * 100);
+    spo2 = SpO2 / 100;
+    updates++;
+  }
+
+  // Power spectrum of the segment in ring (oldest sample at start) into power,
+  // returns the segment mean
+  private float periodogram(float[] ring, int start, float[] power)
+  {
+    float sum = 0;
+    for (int n = 0; n < segment; n++)
+      sum += ring[n];
+    float mean = sum / segment;
+    for (int n = 0, j = start; n < segment; n++)
+    {
+      work[n] = (ring[j] - mean) * window[n];
+      if (++j == segment)
+        j = 0;
+    }
+    fft.power(work, power);
+    return mean;
+  }
+
+  // Amplitude of a sinusoid whose windowed power is the peak bin and its neighbours
+  private float amplitude(float[] power, int peak)
+  {
+    float p = power[peak - 1] + power[peak] + power[peak + 1];
+    return (float) Math.sqrt(4 * p / (segment * windowPower));
+  }
+
+  public void reset()
+  {
+    count = 0;
+    sinceUpdate = 0;
+    periodograms = 0;
+    nextPeriodogram = 0;
+  }
+}
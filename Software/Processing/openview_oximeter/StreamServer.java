@@ -0,0 +1,536 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Streams decoded samples to other machines on the network, over TCP and
+ * UDP on the same port number.
+ *
+ * The DSP thread only offer()s samples to a SampleRing and sets the latest
+ * vitals; one selector thread does all the networking. Every batchMillis it
+ * drains the ring into frames and hands each frame to every subscriber:
+ *
+ *   TCP  connect and read, frames follow each other on the stream
+ *   UDP  send "PCOS SUBSCRIBE" to subscribe (and again at least every
+ *        udpTimeoutMillis to stay subscribed), "PCOS BYE" to leave
+ *
+ * UDP source addresses can be spoofed, so a subscription would let anyone
+ * point a stream of frames at a third party. The server therefore listens on
+ * loopback unless bindAddress says otherwise, ignores every datagram that
+ * isn't one of the two requests, and takes at most maxClients TCP clients and
+ * maxSubscribers UDP subscribers.
+ *
+ * Each TCP client has a fixed output buffer. A frame that doesn't fit is
+ * dropped for that client only, and a client that hasn't taken anything for
+ * slowClientMillis is disconnected, so a slow reader never holds up the
+ * others or the acquisition. A UDP frame the socket can't take right away is
+ * dropped the same way.
+ *
+ * Frame layout (little-endian, like BinaryRecording):
+ *
+ *   header (40 bytes)
+ *     0  magic "PCOS"
+ *     4  version          short
+ *     6  header size      short
+ *     8  sequence         long    (frame number; a gap means frames were dropped)
+ *     16 sample rate      float
+ *     20 SpO2             float   (%, 0 without a current estimate)
+ *     24 heart rate       float   (BPM, 0 without a pulse)
+ *     28 signal quality   float   (0..1)
+ *     32 sample count     short
+ *     34 reserved         short
+ *     36 feed drops       int     (samples the server itself had no room for, total)
+ *
+ *   samples (16 bytes each, the BinaryRecording record)
+ *     0  host timestamp   long    (System.nanoTime() when its frame was complete)
+ *     8  RED count        int
+ *     12 IR count         int
+ */
+public class StreamServer implements Runnable
+{
+  public static final int MAGIC = 0x534F4350;          // "PCOS" read little-endian
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 40;
+  public static final int RECORD_SIZE = 16;
+  public static final int MAX_BATCH = 64;              // keeps a frame in one unfragmented datagram
+
+  public final int port;
+  public final float sampleRate;
+
+  public static final byte[] SUBSCRIBE = ascii("PCOS SUBSCRIBE");
+  public static final byte[] UNSUBSCRIBE = ascii("PCOS BYE");
+
+  public InetAddress bindAddress = InetAddress.getLoopbackAddress();   // null listens on every interface
+  public int maxClients = 8;
+  public int maxSubscribers = 8;
+  public long batchMillis = 20;
+  public int clientBuffer = 64 * 1024;     // bytes queued per TCP client before frames are dropped
+  public long slowClientMillis = 10000;
+  public long udpTimeoutMillis = 10000;
+
+  private final SampleRing ring;
+  private volatile float spo2, bpm, quality;
+
+  private Selector selector;
+  private ServerSocketChannel tcp;
+  private DatagramChannel udp;
+  private Thread thread;
+  private volatile boolean running;
+
+  private final List<Client> clients = new ArrayList<Client>();
+  private final Map<SocketAddress, Long> subscribers = new LinkedHashMap<SocketAddress, Long>();
+  private volatile int clientCount, subscriberCount;
+
+  private final long[] stamps = new long[MAX_BATCH];
+  private final int[] red = new int[MAX_BATCH];
+  private final int[] ir = new int[MAX_BATCH];
+  private final ByteBuffer frame = ByteBuffer.allocateDirect(HEADER_SIZE + MAX_BATCH * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private final ByteBuffer incoming = ByteBuffer.allocate(512);
+  private long sequence;
+
+  private volatile long frames;            // frames built
+  private volatile long sent;              // frames handed to a client or subscriber
+  private volatile long dropped;           // ... and ones dropped because one was behind
+  private volatile long refused;           // clients and subscribers turned away at the limits
+  private volatile long ignored;           // datagrams that weren't a request
+
+  private static class Client
+  {
+    final SocketChannel channel;
+    final ByteBuffer out;
+    long lastProgress;
+
+    Client(SocketChannel channel, int buffer, long now)
+    {
+      this.channel = channel;
+      this.out = ByteBuffer.allocate(buffer);
+      this.lastProgress = now;
+    }
+  }
+
+  public StreamServer(int port, float sampleRate, int queueSize)
+  {
+    this.port = port;
+    this.sampleRate = sampleRate;
+    this.ring = new SampleRing(queueSize);
+  }
+
+  public void start() throws IOException
+  {
+    selector = Selector.open();
+    try
+    {
+      tcp = ServerSocketChannel.open();
+      tcp.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+      tcp.bind(new InetSocketAddress(bindAddress, port));
+      tcp.configureBlocking(false);
+      tcp.register(selector, SelectionKey.OP_ACCEPT);
+
+      udp = DatagramChannel.open();
+      udp.bind(new InetSocketAddress(bindAddress, port));
+      udp.configureBlocking(false);
+      udp.register(selector, SelectionKey.OP_READ);
+    }
+    catch (IOException e)
+    {
+      closeChannels();
+      throw e;
+    }
+    running = true;
+    thread = new Thread(this, "stream-server " + port);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop()
+  {
+    running = false;
+    if (selector != null)
+      selector.wakeup();
+    if (thread != null)
+    {
+      try
+      {
+        thread.join(2000);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // Called from the DSP thread, returns false if the sample was dropped
+  public boolean offer(long nanos, int r, int i)
+  {
+    return running && ring.offer(nanos, r, i);
+  }
+
+  // Latest readings, sent along with every frame
+  public void vitals(float spo2, float bpm, float quality)
+  {
+    this.spo2 = spo2;
+    this.bpm = bpm;
+    this.quality = quality;
+  }
+
+  /************** Selector Thread **********************/
+
+  public void run()
+  {
+    long lastBatch = System.nanoTime();
+    try
+    {
+      while (running)
+      {
+        selector.select(Math.max(1, batchMillis));
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext())
+        {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid())
+            continue;
+          if (key.isAcceptable())
+            accept();
+          else if (key.channel() == udp)
+            receive();
+          else
+          {
+            Client c = (Client) key.attachment();
+            if (key.isReadable())
+              read(c);
+            if (key.isValid() && key.isWritable())
+              flush(c, System.currentTimeMillis());
+          }
+        }
+
+        long now = System.nanoTime();
+        if (now - lastBatch >= batchMillis * 1000000L || ring.size() >= MAX_BATCH)
+        {
+          lastBatch = now;
+          publish();
+        }
+      }
+    }
+    catch (IOException e)
+    {
+      System.err.println("Stream server stopped: " + e);
+    }
+    finally
+    {
+      running = false;
+      for (Client c : clients)
+        closeQuietly(c.channel);
+      clients.clear();
+      subscribers.clear();
+      clientCount = subscriberCount = 0;
+      closeChannels();
+    }
+  }
+
+  private void accept() throws IOException
+  {
+    SocketChannel channel = tcp.accept();
+    if (channel == null)
+      return;
+    if (clients.size() >= maxClients)
+    {
+      closeQuietly(channel);
+      refused++;
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    Client c = new Client(channel, clientBuffer, System.currentTimeMillis());
+    channel.register(selector, SelectionKey.OP_READ, c);
+    clients.add(c);
+    clientCount = clients.size();
+  }
+
+  // clients don't send anything, reading only notices when they go away
+  private void read(Client c)
+  {
+    try
+    {
+      incoming.clear();
+      if (c.channel.read(incoming) < 0)
+        drop(c);
+    }
+    catch (IOException e)
+    {
+      drop(c);
+    }
+  }
+
+  private void receive() throws IOException
+  {
+    incoming.clear();
+    SocketAddress from;
+    while ((from = udp.receive(incoming)) != null)
+    {
+      incoming.flip();
+      if (request(UNSUBSCRIBE))
+        subscribers.remove(from);
+      else if (!request(SUBSCRIBE))
+        ignored++;
+      else if (subscribers.containsKey(from) || subscribers.size() < maxSubscribers)
+        subscribers.put(from, System.currentTimeMillis());
+      else
+        refused++;
+      incoming.clear();
+    }
+    subscriberCount = subscribers.size();
+  }
+
+  // true if the datagram in incoming is exactly the request
+  private boolean request(byte[] request)
+  {
+    if (incoming.remaining() != request.length)
+      return false;
+    for (int i = 0; i < request.length; i++)
+    {
+      if (incoming.get(i) != request[i])
+        return false;
+    }
+    return true;
+  }
+
+  private static byte[] ascii(String s)
+  {
+    byte[] b = new byte[s.length()];
+    for (int i = 0; i < b.length; i++)
+      b[i] = (byte) s.charAt(i);
+    return b;
+  }
+
+  // Drains the ring into frames and passes each one to everybody
+  private void publish()
+  {
+    long nowMillis = System.currentTimeMillis();
+    expireSubscribers(nowMillis);
+    int n;
+    while ((n = ring.drainTo(stamps, red, ir, MAX_BATCH)) > 0)
+    {
+      frame.clear();
+      frame.putInt(MAGIC);
+      frame.putShort((short) VERSION);
+      frame.putShort((short) HEADER_SIZE);
+      frame.putLong(++sequence);
+      frame.putFloat(sampleRate);
+      frame.putFloat(spo2);
+      frame.putFloat(bpm);
+      frame.putFloat(quality);
+      frame.putShort((short) n);
+      frame.putShort((short) 0);
+      frame.putInt((int) Math.min(Integer.MAX_VALUE, ring.dropped()));
+      for (int k = 0; k < n; k++)
+      {
+        frame.putLong(stamps[k]);
+        frame.putInt(red[k]);
+        frame.putInt(ir[k]);
+      }
+      frame.flip();
+      frames++;
+
+      for (int c = clients.size() - 1; c >= 0; c--)
+        enqueue(clients.get(c), nowMillis);
+      for (SocketAddress to : subscribers.keySet())
+        sendTo(to);
+    }
+  }
+
+  private void enqueue(Client c, long now)
+  {
+    if (c.out.remaining() < frame.remaining())
+    {
+      dropped++;
+      if (now - c.lastProgress > slowClientMillis)
+        drop(c);
+      return;
+    }
+    c.out.put(frame.duplicate());
+    sent++;
+    flush(c, now);
+  }
+
+  private void flush(Client c, long now)
+  {
+    try
+    {
+      c.out.flip();
+      if (c.channel.write(c.out) > 0)
+        c.lastProgress = now;
+      boolean pending = c.out.hasRemaining();
+      c.out.compact();
+      SelectionKey key = c.channel.keyFor(selector);
+      if (key != null && key.isValid())
+        key.interestOps(pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+      if (!pending)
+        c.lastProgress = now;
+    }
+    catch (IOException e)
+    {
+      drop(c);
+    }
+  }
+
+  private void sendTo(SocketAddress to)
+  {
+    try
+    {
+      frame.position(0);
+      if (udp.send(frame, to) == 0)
+        dropped++;
+      else
+        sent++;
+    }
+    catch (IOException e)
+    {
+      // unreachable right now, it will time out unless it subscribes again
+      dropped++;
+    }
+  }
+
+  private void expireSubscribers(long now)
+  {
+    for (Iterator<Long> it = subscribers.values().iterator(); it.hasNext(); )
+    {
+      if (now - it.next() > udpTimeoutMillis)
+        it.remove();
+    }
+    subscriberCount = subscribers.size();
+  }
+
+  private void drop(Client c)
+  {
+    clients.remove(c);
+    clientCount = clients.size();
+    closeQuietly(c.channel);
+  }
+
+  private void closeChannels()
+  {
+    closeQuietly(tcp);
+    closeQuietly(udp);
+    if (selector != null)
+    {
+      try
+      {
+        selector.close();
+      }
+      catch (IOException e)
+      {
+      }
+    }
+  }
+
+  private static void closeQuietly(Channel channel)
+  {
+    if (channel == null)
+      return;
+    try
+    {
+      channel.close();
+    }
+    catch (IOException e)
+    {
+    }
+  }
+
+  /************** Status **********************/
+
+  public boolean running()
+  {
+    return running;
+  }
+
+  public int clients()
+  {
+    return clientCount;
+  }
+
+  public int subscribers()
+  {
+    return subscriberCount;
+  }
+
+  public long frames()
+  {
+    return frames;
+  }
+
+  public long sent()
+  {
+    return sent;
+  }
+
+  // frames not delivered to a client that was behind
+  public long dropped()
+  {
+    return dropped;
+  }
+
+  public long refused()
+  {
+    return refused;
+  }
+
+  public long ignored()
+  {
+    return ignored;
+  }
+
+  // samples offered while the server's own queue was full
+  public long feedDropped()
+  {
+    return ring.dropped();
+  }
+
+  public void instrument(Metrics metrics, String prefix)
+  {
+    metrics.gauge(prefix + ".clients", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return clients() + subscribers();
+      }
+    });
+    metrics.cumulative(prefix + ".frames", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return frames();
+      }
+    });
+    metrics.cumulative(prefix + ".dropped", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return dropped() + feedDropped();
+      }
+    });
+    metrics.cumulative(prefix + ".refused", new Metrics.Gauge()
+    {
+      public double value()
+      {
+        return refused() + ignored();
+      }
+    });
+  }
+}
@@ -0,0 +1,163 @@
+import java.util.Random;
+
+/*
+ * Synthetic RED/IR photoplethysmogram for testing and profiling without a
+ * board. Each beat is a systolic peak followed by a smaller dicrotic wave.
+ * The RED modulation depth is derived from the IR one so that the sketch's
+ * ratio-of-ratios formula (SpO2 = 110 - 25 R) comes out at the requested SpO2.
+ *
+ * Samples are encoded into the same CES frames Continuos.ino sends and run
+ * through a CesPacketDecoder, so the decoder is part of whatever is being
+ * measured. With realtime off every poll produces a full batch.
+ */
+public class SyntheticPpgSource implements SampleSource, CesPacketDecoder.PacketListener
+{
+  public static final int ADC_MAX = (1 << 18) - 1;    // MAX30102 is an 18 bit ADC
+
+  private static final int BATCH = 4096;
+  private static final int FRAME_SIZE = 15;
+  private static final int TABLE_SIZE = 1024;
+
+  public final float sampleRate;     // samples/s, up to 1000 like the MAX30102
+  public final float heartRate;      // beats/min
+  public final float spo2;           // %
+  public final float noise;          // gaussian noise, as a fraction of the IR pulse amplitude
+
+  public float perfusion = 0.02f;    // IR AC/DC modulation depth
+  public int dcRed = 100000;
+  public int dcIr = 120000;
+  public boolean realtime = true;
+  public long seed = 1;
+
+  private final float[] pulse = new float[TABLE_SIZE];
+  private final byte[] frames = new byte[BATCH * FRAME_SIZE];
+  private final CesPacketDecoder decoder = new CesPacketDecoder(64, this);
+
+  private Random random;
+  private double phase;
+  private long produced;
+  private long startNanos;
+
+  private SampleSource.Sink sink;
+  private long batchStart;
+  private long stampStep;
+  private int delivered;
+
+  public SyntheticPpgSource(float sampleRate, float heartRate, float spo2, float noise)
+  {
+    this.sampleRate = sampleRate;
+    this.heartRate = heartRate;
+    this.spo2 = spo2;
+    this.noise = noise;
+
+    float peak = 0;
+    for (int i = 0; i < TABLE_SIZE; i++)
+    {
+      double t = (double) i / TABLE_SIZE;
+      double systolic = Math.exp(-sq((t - 0.18) / 0.07));
+      double dicrotic = 0.35 * Math.exp(-sq((t - 0.45) / 0.09));
+      pulse[i] = (float) (systolic + dicrotic);
+      peak = Math.max(peak, pulse[i]);
+    }
+    for (int i = 0; i < TABLE_SIZE; i++)
+      pulse[i] /= peak;
+  }
+
+  private static double sq(double x)
+  {
+    return x * x;
+  }
+
+  public void open()
+  {
+    random = new Random(seed);
+    phase = 0;
+    produced = 0;
+    startNanos = System.nanoTime();
+    decoder.reset();
+  }
+
+  public int poll(SampleSource.Sink sink)
+  {
+    long now = System.nanoTime();
+    int n = BATCH;
+    if (realtime)
+    {
+      long due = (long) ((now - startNanos) * 1e-9 * sampleRate);
+      n = (int) Math.min(BATCH, due - produced);
+      if (n <= 0)
+        return 0;
+    }
+
+    double acIr = perfusion;
+    double acRed = perfusion * (110 - spo2) / 25;
+    double step = heartRate / 60.0 / sampleRate;
+    int len = 0;
+    for (int i = 0; i < n; i++)
+    {
+      float p = pulse[(int) (phase * TABLE_SIZE)];
+      double jitter = noise * acIr * random.nextGaussian();
+      int red = clamp(dcRed * (1 - acRed * p + jitter * acRed / acIr));
+      int ir = clamp(dcIr * (1 - acIr * p + jitter));
+      len = encode(red, ir, frames, len);
+
+      phase += step;
+      if (phase >= 1)
+        phase -= 1;
+    }
+    produced += n;
+
+    // spread the stamps over the time the batch covers
+    this.sink = sink;
+    stampStep = (long) (1e9 / sampleRate);
+    batchStart = now - (n - 1) * stampStep;
+    delivered = 0;
+    decoder.process(frames, 0, len);
+    return delivered;
+  }
+
+  public void onPacket(int pktType, int[] words, int wordCount)
+  {
+    if (pktType == CesPacketDecoder.CES_CMDIF_TYPE_DATA && wordCount >= 2)
+    {
+      sink.onSample(batchStart + delivered * stampStep, words[0], words[1]);
+      delivered++;
+    }
+  }
+
+  private static int clamp(double v)
+  {
+    return (int) Math.max(0, Math.min(ADC_MAX, Math.round(v)));
+  }
+
+  // One data packet exactly as Continuos.ino sends it
+  public static int encode(int red, int ir, byte[] out, int pos)
+  {
+    out[pos++] = (byte) CesPacketDecoder.CES_CMDIF_PKT_START_1;
+    out[pos++] = (byte) CesPacketDecoder.CES_CMDIF_PKT_START_2;
+    out[pos++] = 8;
+    out[pos++] = 0;
+    out[pos++] = (byte) CesPacketDecoder.CES_CMDIF_TYPE_DATA;
+    for (int i = 0; i < 4; i++)
+      out[pos++] = (byte) (red >> (8 * i));
+    for (int i = 0; i < 4; i++)
+      out[pos++] = (byte) (ir >> (8 * i));
+    out[pos++] = 0x00;
+    out[pos++] = (byte) CesPacketDecoder.CES_CMDIF_PKT_STOP;
+    return pos;
+  }
+
+  public void close()
+  {
+  }
+
+  public String describe()
+  {
+    return "simulator " + (int) sampleRate + " sps";
+  }
+
+  public CesPacketDecoder decoder()
+  {
+    return decoder;
+  }
+}
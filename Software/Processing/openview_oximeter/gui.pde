@@ -31,6 +31,7 @@ public void start_click(GButton source, GEvent event) {
   start.setEnabled(false);
   startPlot = true;
   oxygenSaturation.setVisible(true);
+  heartRate.setVisible(true);
   start.setLocalColorScheme(GCScheme.CYAN_SCHEME);
 }
 
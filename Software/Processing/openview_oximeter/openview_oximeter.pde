@@ -4,9 +4,10 @@ import g4p_controls.*;
 import java.awt.*;
 import javax.swing.JFileChooser;
 
-import java.math.*;
 import java.io.FileWriter;
 import java.io.BufferedWriter;
+import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Date;
 import static javax.swing.JOptionPane.*;
 
@@ -15,89 +16,49 @@ import java.io.BufferedReader;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
-//import signal.library.*;
-
-/************** Packet Validation  **********************/
-private static final int CESState_Init = 0;
-private static final int CESState_SOF1_Found = 1;
-private static final int CESState_SOF2_Found = 2;
-private static final int CESState_PktLen_Found = 3;
-
-private static final int CESState_EOF_Wait = 98;
-private static final int CESState_EOF_Found = 99;
-
-/*CES CMD IF Packet Format*/
-private static final int CES_CMDIF_PKT_START_1 = 0x0A;
-private static final int CES_CMDIF_PKT_START_2 = 0xFA;
-private static final int CES_CMDIF_PKT_STOP = 0x0B;
-
-/*CES CMD IF Packet Indices*/
-private static final int CES_CMDIF_IND_START_1 = 0;
-private static final int CES_CMDIF_IND_START_2 = 1;
-private static final int CES_CMDIF_IND_LEN = 2;
-private static final int CES_CMDIF_IND_LEN_MSB = 3;
-private static final int CES_CMDIF_IND_PKTTYPE = 4;
-private static final int CES_CMDIF_IND_DATA0 = 5;
-private static final int CES_CMDIF_IND_DATA1 = 6;
-private static final int CES_CMDIF_IND_DATA2 = 7;
-
-/* CES OTA Data Packet Positions */
-private static int CES_OTA_DATA_PKT_POS_LENGTH = 0;
-private static int CES_OTA_DATA_PKT_POS_CMD_CAT = 1;
-private static int CES_OTA_DATA_PKT_POS_DATA_TYPE = 2;
-private static int CES_OTA_DATA_PKT_POS_SENS_TYPE = 3;
-private static int CES_OTA_DATA_PKT_POS_RSVD = 4;
-private static int CES_OTA_DATA_PKT_POS_SENS_ID = 5;
-private static int CES_OTA_DATA_PKT_POS_DATA = 6;
-
-private static int CES_OTA_DATA_PKT_OVERHEAD = 6;
-private static int CES_CMDIF_PKT_OVERHEAD = 5;
-
-/************** Packet Related Variables **********************/
-
-int ecs_rx_state = 0;
-int CES_Pkt_Len;
-int CES_Pkt_Pos_Counter, CES_Pkt_Data_Counter1, CES_Pkt_Data_Counter2;
-int CES_Pkt_PktType;
-char DataRcvPacket1[] = new char[500];
-char DataRcvPacket2[] = new char[500];
-
 /************** ControlP5 Related Variables **********************/
 
 int colorValue;
 HelpWidget helpWidget;
 HeaderButton headerButton;
 MessageBox msgBox;
-SPO2_cal s;
 boolean visibility=false;
 
 /************** Graph Related Variables **********************/
 
 double maxAxis_ir, minAxis_ir, maxAxis_red, minAxis_red;
-double receivedVoltage_RED, receivedVoltage_IR;
-BigDecimal min, max;
 
 /************** File Related Variables **********************/
 
-boolean logging = false;
-FileWriter output;
-JFileChooser jFileChooser;
+volatile boolean logging = false;
+volatile SessionLogger sessionLogger;       // "index , value1 , value2" text log
+volatile SessionLogger sessionRecorder;     // raw RED/IR counts in BinaryRecording format
+long loggedDrops = 0;
+float sampleRate = 100;                     // matches sr100 in Continuos.ino
 Date date;
 FileReader readOutput;
 String line;
-BufferedWriter bufferedWriter;
-DateFormat dateFormat;
 
 /************** Port Related Variables **********************/
 
-Serial port = null;
+int baudRate = 57600;
+volatile SamplePipeline pipeline;
+static final String SIMULATOR_PORT = "SIMULATOR";
+static final String REPLAY_PORT = "REPLAY FILE";
 int Ss = -1;
 String[] comList;
 boolean serialSet;
 boolean portSelected = false;
 String portName;
-char inString = '\0';
 String selectedPort;
+volatile SourceConnector connector;         // opens the selected source and reconnects it
+volatile File replayFile;                   // picked in the file dialog, connected by draw()
+volatile String[] foundPorts;               // left by listPorts() for draw() to show
+volatile boolean listingPorts;
+String[] listedPorts = new String[0];
+int listStarted, portsListed;
+String shownStatus = "";
+boolean portListOpen = true;
 
 /************** Logo Related Variables **********************/
 
@@ -110,19 +71,57 @@ String msgs;
 int startTime = 0;
 
 int pSize = 400;
-float[] xdata = new float[pSize];
-float[] ydata = new float[pSize];
-float[] AvgYdata = new float[pSize];
-float[] zdata = new float[pSize];
-float[] AvgZdata = new float[pSize];
-int arrayIndex = 1;
 Graph g, g1;
 float time =0;
-BigDecimal avg, rms, a;
+int shownSpo2Count = 0;
+int shownBeats = 0;
+String shownSpo2 = "", shownBpm = "";          // label texts, only set again when they change
+GLabel heartRate;
 double additionFactor_red, additionFactor_ir;
-float value1, value2;
-float RedAC = 0, RedDC = 0, IrAC = 0, IrDC = 0;
-//SignalFilter myFilter;
+int filterOrder = 2;                        // band-pass order
+float filterLow = 0.5, filterHigh = 5;      // band-pass corners in Hz
+float notchFreq = 50;                       // mains notch, 60 for 60 Hz mains (needs sampleRate >= 120)
+
+/************** Link Health Related Variables **********************/
+
+boolean showLinkHealth = false;                 // toggled with the F key
+RollingRate byteRate = new RollingRate(5000, 20);
+RollingRate frameRate = new RollingRate(5000, 20);
+RollingRate errorRate = new RollingRate(5000, 20);
+RollingRate dspRate = new RollingRate(5000, 20);
+int linkHealthShown = 0;
+SamplePipeline ratedPipeline;                   // the one the rates above last sampled
+long bytesBefore, framesBefore, errorsBefore, processedBefore;   // totals of earlier connections
+
+/************** Metrics Related Variables **********************/
+
+Metrics metrics = new Metrics();                // also on JMX as openview_oximeter:type=Metrics
+Metrics.Histogram frameNanos, frameInterval;
+long lastDrawStart = 0;
+boolean showMetrics = false;                    // toggled with the M key
+int metricsShown = 0;
+boolean showLatency = false;                    // toggled with the T key
+float latencyBudget = 100;                      // ms from a completed frame to the screen, p99
+boolean showSpectrum = false;                   // toggled with the S key
+boolean showQuality = false;                    // toggled with the Q key
+
+/************** History Related Variables **********************/
+
+volatile MinMaxPyramid redHistory, irHistory;   // the whole session, as plotted
+boolean showHistory = false;                    // toggled with the H key
+long historySpan;                               // samples across the view, 1 s to 12 h
+long historyEnd = -1;                           // last sample in view, -1 follows the newest
+
+/************** Streaming Related Variables **********************/
+
+volatile StreamServer streamServer;             // toggled with the N key
+int streamPort = 5999;                          // TCP and UDP
+String streamAddress = "";                      // interface to stream on: "" is loopback only, "0.0.0.0" every one
+
+/************** Dashboard Related Variables **********************/
+
+int dashboardDevices = 32;                  // simulated devices shown with the D key
+Dashboard dashboard;
 
 public void setup() {
   size(1000, 700, JAVA2D);
@@ -137,262 +136,796 @@ public void setup() {
   headerButton = new HeaderButton(0, 0, width, 60);
   helpWidget = new HelpWidget(0, height - 30, width, 40); 
   msgBox = new MessageBox();
-  s = new SPO2_cal();
   g = new Graph(100, 100, width-120, 200);
   g1 = new Graph(100, 350, width-120, 200);
   setChartSettings();
-  for (int i=0; i<pSize; i++) 
-  {
-    time = time + 2;
-    xdata[i]=time;
-    ydata[i] = 0;
-    zdata[i] = 0;
-  }
-  time = 0;
   g.GraphColor = color(0, 255, 0);
   g.Title = "RED";
   g1.GraphColor = color( 0, 255, 0);
   g1.Title = "IR";
- // myFilter = new SignalFilter(this);
+
+  startMetrics();
 }
 
 /*********************************************** Draw Function *********************************************************/
 
 public void draw() {
+  long drawStart = System.nanoTime();
   background(0);
-  while (portSelected == true && serialSet == false)
+  updateConnection();
+  if (dashboard != null)
   {
-    startSerial(comList);
+    dashboard.draw();
+    headerButton.draw();
+    helpWidget.draw();
+    endFrame(drawStart);
+    return;
   }
-  background(0);
-  if (startPlot)
+  SignalFrame frame = null;
+  SamplePipeline current = pipeline;
+  if (current != null)
   {
-    g.LineGraph(xdata, ydata);
-    g1.LineGraph(xdata, zdata);
+    frame = current.frames.latest();
+    time = frame.time;
+    updateLinkHealth(current);
+    if (!showHistory)
+      setAxisRange(frame);
+  }
+  if (startPlot && frame != null)
+  {
+    if (showHistory)
+    {
+      drawHistory();
+    } else
+    {
+      g.SweepGraph(frame.ydata, frame.arrayIndex, frame.samples);
+      g1.SweepGraph(frame.zdata, frame.arrayIndex, frame.samples);
+      current.displayed(frame);
+    }
   }
 
   g.DrawAxis();
   g1.DrawAxis();
 
+  if (frame != null && frame.spo2Count != shownSpo2Count)
+  {
+    shownSpo2Count = frame.spo2Count;
+    String text = frame.spo2 == 0 ? "--" : frame.spo2+"";
+    if (!text.equals(shownSpo2))
+    {
+      shownSpo2 = text;
+      oxygenSaturation.setText(text);
+    }
+  }
+  if (frame != null && (frame.beats != shownBeats || (frame.bpm == 0 && shownBeats != 0)))
+  {
+    shownBeats = frame.bpm == 0 ? 0 : frame.beats;
+    String text = frame.bpm == 0 ? "--" : round(frame.bpm)+" BPM";
+    if (!text.equals(shownBpm))
+    {
+      shownBpm = text;
+      heartRate.setText(text);
+    }
+  }
+
+  SessionLogger logger = sessionLogger != null ? sessionLogger : sessionRecorder;
+  if (logger != null && logger.dropped() != loggedDrops)
+  {
+    loggedDrops = logger.dropped();
+    IOException error = logger.lastError();
+    if (error != null)
+      helpWidget.output("Logging to "+logger.currentFile().getName()+" failed: "+error.getMessage()+"  ("+loggedDrops+" samples dropped)");
+    else
+      helpWidget.output("Logging to "+logger.currentFile().getName()+"  ("+loggedDrops+" samples dropped)");
+  }
+
+  if (frame != null)
+    msgBox.update(frame);
+  if (showMetrics)
+    updateMetricsOverlay();
+  else if (showLatency)
+    updateLatencyOverlay();
+  else if (showSpectrum && frame != null)
+    updateSpectrumOverlay(frame);
+  else if (showQuality && frame != null)
+    updateQualityOverlay(current, frame);
  // msgBox.MessageBoxAxis(0, height - 100, width, 70);
  // msgBox.draw();
   headerButton.draw();
   helpWidget.draw();
+  endFrame(drawStart);
 }
 
-/*********************************************** Opening Port Function ******************************************* **************/
+/*********************************************** Metrics Functions *********************************************************/
 
-void startSerial(String[] theport)
+void startMetrics()
+{
+  metrics.addJvmMetrics();
+  metrics.gauge("logger.backlog", new Metrics.Gauge()
+  {
+    public double value()
+    {
+      SessionLogger logger = sessionLogger, recorder = sessionRecorder;
+      return (logger != null ? logger.backlog() : 0) + (recorder != null ? recorder.backlog() : 0);
+    }
+  });
+  frameNanos = metrics.histogram("render.frame.nanos");
+  frameInterval = metrics.histogram("render.interval.nanos");
+  metrics.register("openview_oximeter:type=Metrics");
+  metrics.start();
+}
+
+// time spent in draw(), and from one draw() to the next (stalls show up there)
+void endFrame(long drawStart)
+{
+  frameNanos.record(System.nanoTime() - drawStart);
+  if (lastDrawStart != 0)
+    frameInterval.record(drawStart - lastDrawStart);
+  lastDrawStart = drawStart;
+}
+
+void updateMetricsOverlay()
+{
+  int now = millis();
+  if (now - metricsShown < 1000)
+    return;
+  metricsShown = now;
+  Metrics.Histogram decode = metrics.histogram("device.decode.nanos");
+  helpWidget.output(round((float) metrics.rate("device.samples"))+" sps, decode p99 "+round(decode.p99 / 1000.0)+" us"
+    +" | queues "+round((float) metrics.gaugeValue("device.queue.acquisition"))+"/"+round((float) metrics.gaugeValue("device.queue.frames"))
+    +", dropped "+round((float) metrics.rate("device.dropped"))+"/s"
+    +" | frame p50 "+nf(frameNanos.p50 / 1e6, 0, 1)+" p99 "+nf(frameNanos.p99 / 1e6, 0, 1)+" ms, gap "+round(frameInterval.max / 1e6)+" ms"
+    +" | log backlog "+round((float) metrics.gaugeValue("logger.backlog"))
+    +" | GC "+round((float) metrics.rate("jvm.gc.millis"))+" ms/s, alloc "+nf((float) (metrics.rate("jvm.allocated.bytes") / 1e6), 0, 1)+" MB/s");
+}
+
+// How old samples are on screen against the budget, how long a beat takes
+// to reach the BPM reading, and how evenly samples arrive. Ages are counted
+// from the host nanoTime a frame was complete at.
+void updateLatencyOverlay()
+{
+  int now = millis();
+  if (now - metricsShown < 1000)
+    return;
+  metricsShown = now;
+  Metrics.Histogram display = metrics.histogram("device.latency.display.nanos");
+  Metrics.Histogram dsp = metrics.histogram("device.latency.dsp.nanos");
+  Metrics.Histogram gap = metrics.histogram("device.arrival.gap.nanos");
+  Metrics.Histogram jitter = metrics.histogram("device.arrival.jitter.nanos");
+  Metrics.Histogram beat = metrics.histogram("device.latency.beat.nanos");
+  String verdict = display.count == 0 ? "no frames" : display.p99 / 1e6 <= latencyBudget ? "within" : "OVER";
+  helpWidget.output("Frame to screen p50 "+nf(display.p50 / 1e6, 0, 1)+" p99 "+nf(display.p99 / 1e6, 0, 1)+" max "+nf(display.max / 1e6, 0, 1)
+    +" ms ("+verdict+" "+round(latencyBudget)+" ms budget, worst "+round(display.maxEver() / 1e6)+")"
+    +" | to DSP p99 "+nf(dsp.p99 / 1e6, 0, 1)+" ms"
+    +" | beat to BPM worst "+nf(beat.maxEver() / 1e6, 0, 2)+" ms ("+(beat.maxEver() / 1e6 <= latencyBudget ? "within" : "OVER")+")"
+    +" | arrival gap p50 "+nf(gap.p50 / 1e6, 0, 1)+" max "+nf(gap.max / 1e6, 0, 1)+" ms, jitter p99 "+nf(jitter.p99 / 1e6, 0, 1)+" ms");
+}
+
+// The spectral estimate next to the time domain one, they should agree on a
+// clean signal and drift apart when noise or motion gets into the AC levels
+void updateSpectrumOverlay(SignalFrame frame)
+{
+  int now = millis();
+  if (now - metricsShown < 1000)
+    return;
+  metricsShown = now;
+  if (frame.spectralCount == 0)
+  {
+    helpWidget.output("Spectrum: waiting for the first 5 s of signal");
+    return;
+  }
+  helpWidget.output("Spectrum: peak "+nf(frame.spectralHz, 0, 2)+" Hz = "+round(frame.spectralBpm)+" BPM, SpO2 "+nf(frame.spectralSpo2, 0, 1)
+    +" | AC at peak RED "+nf(frame.spectralRedAC, 0, 3)+", IR "+nf(frame.spectralIrAC, 0, 3)
+    +" | time domain "+(frame.bpm == 0 ? "--" : round(frame.bpm)+"")+" BPM, SpO2 "+(frame.spo2 == 0 ? "--" : nf(frame.spo2, 0, 1)));
+}
+
+// What the SpO2 and BPM labels are gated on, and how much they held back
+void updateQualityOverlay(SamplePipeline p, SignalFrame frame)
+{
+  int now = millis();
+  if (now - metricsShown < 500)
+    return;
+  metricsShown = now;
+  SignalQuality q = p.processor.quality;
+  helpWidget.output("Signal quality "+nf(frame.quality, 0, 2)+(frame.quality >= q.gate ? " (good)" : " (poor, readings held)")
+    +" | perfusion "+nf(frame.perfusion, 0, 2)+"%, skew "+nf(frame.skewness, 0, 2)+", RED/IR corr "+nf(frame.correlation, 0, 2)
+    +", clipped "+frame.clipped+" | held back "+frame.spo2Rejected+" SpO2, "+frame.beatsRejected+" beats");
+}
+
+/*********************************************** Session Logging Functions *********************************************************/
+
+public void keyPressed()
+{
+  if (key == 'l' || key == 'L')
+  {
+    if (logging)
+      stopLogging();
+    else
+      selectOutput("Save session log as:", "logFileSelected");
+  } else if (key == 'r' || key == 'R')
+  {
+    if (sessionRecorder != null)
+      stopRecording();
+    else
+      selectOutput("Save raw recording as:", "recordFileSelected");
+  } else if (key == 'f' || key == 'F')
+  {
+    showLinkHealth = !showLinkHealth;
+    showMetrics = showLatency = showSpectrum = showQuality = false;
+    if (!showLinkHealth)
+      helpWidget.output("");
+  } else if (key == 'm' || key == 'M')
+  {
+    showMetrics = !showMetrics;
+    showLinkHealth = showLatency = showSpectrum = showQuality = false;
+    metricsShown = 0;
+    if (!showMetrics)
+      helpWidget.output("");
+  } else if (key == 't' || key == 'T')
+  {
+    showLatency = !showLatency;
+    showLinkHealth = showMetrics = showSpectrum = showQuality = false;
+    metricsShown = 0;
+    if (!showLatency)
+      helpWidget.output("");
+  } else if (key == 's' || key == 'S')
+  {
+    showSpectrum = !showSpectrum;
+    showLinkHealth = showMetrics = showLatency = showQuality = false;
+    metricsShown = 0;
+    if (!showSpectrum)
+      helpWidget.output("");
+  } else if (key == 'q' || key == 'Q')
+  {
+    showQuality = !showQuality;
+    showLinkHealth = showMetrics = showLatency = showSpectrum = false;
+    metricsShown = 0;
+    if (!showQuality)
+      helpWidget.output("");
+  } else if (key == 'h' || key == 'H')
+  {
+    toggleHistory();
+  } else if (showHistory && key == CODED && keyCode == LEFT)
+  {
+    scrollHistory(-historySpan / 4);
+  } else if (showHistory && key == CODED && keyCode == RIGHT)
+  {
+    scrollHistory(historySpan / 4);
+  } else if (showHistory && key == CODED && keyCode == java.awt.event.KeyEvent.VK_END)
+  {
+    historyEnd = -1;
+  } else if (key == 'n' || key == 'N')
+  {
+    if (streamServer != null)
+      stopStreaming();
+    else
+      startStreaming();
+  } else if (key == 'd' || key == 'D')
+  {
+    if (dashboard != null)
+      stopDashboard();
+    else
+      startDashboard();
+  }
+}
+
+/*********************************************** Link Health Functions *********************************************************/
+
+// Framing counters of the link next to how the DSP side keeps up, so a slow
+// or choppy display can be put down to line noise or to our own processing
+void updateLinkHealth(SamplePipeline p)
+{
+  int now = millis();
+  if (p != ratedPipeline)
+  {
+    // reconnected: the new pipeline counts from zero, the rates go on
+    SamplePipeline old = ratedPipeline;
+    if (old != null)
+    {
+      CesPacketDecoder od = old.source.decoder();
+      if (od != null)
+      {
+        bytesBefore += od.bytes();
+        framesBefore += od.framesOk();
+        errorsBefore += od.badStop() + od.lengthErrors();
+      }
+      processedBefore += old.processed();
+    }
+    ratedPipeline = p;
+  }
+  CesPacketDecoder d = p.source.decoder();
+  if (d != null)
+  {
+    byteRate.sample(now, bytesBefore + d.bytes());
+    frameRate.sample(now, framesBefore + d.framesOk());
+    errorRate.sample(now, errorsBefore + d.badStop() + d.lengthErrors());
+  }
+  dspRate.sample(now, processedBefore + p.processed());
+  if (!showLinkHealth || now - linkHealthShown < 500)
+    return;
+  linkHealthShown = now;
+
+  String link = "Link: no framing ("+p.source.describe()+")";
+  if (d != null)
+  {
+    link = "Link "+round((float) byteRate.perSecond())+" B/s, "+round((float) frameRate.perSecond())+" frames/s, "
+      +nf((float) errorRate.perSecond(), 0, 1)+" errors/s | ok "+d.framesOk()+", bad stop "+d.badStop()
+      +", bad length "+d.lengthErrors()+", resync "+d.resyncBytes()+" B";
+  }
+  helpWidget.output(link+" | DSP "+round((float) dspRate.perSecond())+" sps, queue "+p.acquisitionDepth()+", dropped "+p.dropped());
+}
+
+/*********************************************** History View Functions *********************************************************/
+
+void toggleHistory()
+{
+  showHistory = !showHistory;
+  if (showHistory)
+  {
+    historySpan = round(60 * sampleRate);
+    historyEnd = -1;
+    g.xLabel = g1.xLabel = "Seconds";
+    helpWidget.output("History: mouse wheel zooms, drag or arrow keys scroll, End follows the newest sample");
+  } else
+  {
+    g.xLabel = g1.xLabel = "No.Of Samples";
+    setChartSettings();
+    helpWidget.output("Live view");
+  }
+}
+
+void drawHistory()
+{
+  MinMaxPyramid red = redHistory, ir = irHistory;
+  if (red == null || ir == null)
+    return;
+  long size = Math.min(red.size(), ir.size());
+  long end = historyEnd < 0 ? size : Math.min(historyEnd, size);
+  long from = Math.max(0, end - historySpan);
+  g.HistoryGraph(red, from, end, sampleRate);
+  g1.HistoryGraph(ir, from, end, sampleRate);
+}
+
+// moves the view by samples, stopping at either end of the session
+void scrollHistory(long samples)
+{
+  if (irHistory == null)
+    return;
+  long size = irHistory.size();
+  long end = historyEnd < 0 ? size : historyEnd;
+  end = Math.max(Math.min(historySpan, size), Math.min(size, end + samples));
+  historyEnd = end >= size ? -1 : end;
+}
+
+public void mouseWheel(MouseEvent event)
+{
+  if (!showHistory)
+    return;
+  // zoom by 2x per notch, between 1 second and 12 hours
+  long span = event.getCount() > 0 ? historySpan * 2 : historySpan / 2;
+  historySpan = Math.max(round(sampleRate), Math.min(round(12 * 60 * 60 * sampleRate), span));
+}
+
+public void mouseDragged()
 {
+  if (showHistory)
+    scrollHistory(-(long) (mouseX - pmouseX) * historySpan / g.Width);
+}
+
+void startDashboard()
+{
+  Dashboard board = new Dashboard(dashboardDevices, sampleRate);
+  if (!board.start())
+    return;
+  dashboard = board;
+  oxygenSaturation.setVisible(false);
+  heartRate.setVisible(false);
+}
+
+void stopDashboard()
+{
+  dashboard.stop();
+  dashboard = null;
+  oxygenSaturation.setVisible(startPlot);
+  heartRate.setVisible(startPlot);
+  helpWidget.output("Dashboard closed");
+}
+
+void startStreaming()
+{
+  StreamServer server = new StreamServer(streamPort, sampleRate, 8192);
   try
   {
-    port = new Serial(this, selectedPort, 57600);
-    port.clear();
-    serialSet = true;
-    msgs = "Port "+selectedPort+" is opened Click Start button";
-    portName = "\\"+selectedPort+".txt";
+    if (streamAddress.length() > 0)
+      server.bindAddress = InetAddress.getByName(streamAddress);
+    server.start();
   }
-  catch(Exception e)
+  catch (IOException e)
   {
-    msgs = "Port "+selectedPort+" is busy";
-    showMessageDialog(null, "Port is busy", "Alert", ERROR_MESSAGE);
-    System.exit (0);
+    helpWidget.output("Could not stream on port "+streamPort+": "+e.getMessage());
+    return;
   }
+  metrics.remove("stream.");
+  server.instrument(metrics, "stream");
+  streamServer = server;
+  helpWidget.output("Streaming samples on "+(streamAddress.length() > 0 ? streamAddress : "localhost")+" port "+streamPort
+    +" (TCP, and UDP to whoever sends \"PCOS SUBSCRIBE\")");
 }
 
-/*********************************************** Serial Port Event Function *********************************************************/
+void stopStreaming()
+{
+  StreamServer server = streamServer;
+  streamServer = null;
+  server.stop();
+  metrics.remove("stream.");
+  helpWidget.output("Streaming stopped, "+server.frames()+" frames sent, "+server.dropped()+" dropped for slow clients");
+}
 
-void serialEvent (Serial blePort) 
+public void logFileSelected(File selection)
 {
-  Serialevent = true;
-  inString = blePort.readChar();
-  ecsProcessData(inString);
+  if (selection != null)
+    startLogging(selection);
 }
 
-/*********************************************** Getting Packet Data Function *********************************************************/
+public void recordFileSelected(File selection)
+{
+  if (selection != null)
+    startRecording(selection);
+}
 
-void ecsProcessData(char rxch)
+SessionLogger openSession(File file, SessionLogger.Format format, long rotateBytes, long rotateMillis)
 {
-  switch(ecs_rx_state)
+  SessionLogger logger = new SessionLogger(file, format, 8192);
+  logger.rotateBytes = rotateBytes;
+  logger.rotateMillis = rotateMillis;
+  try
   {
-  case CESState_Init:
-    if (rxch==CES_CMDIF_PKT_START_1)
-      ecs_rx_state=CESState_SOF1_Found;
-    break;
+    logger.start();
+  }
+  catch(IOException e)
+  {
+    helpWidget.output("Could not open "+file.getName()+": "+e.getMessage());
+    return null;
+  }
+  loggedDrops = 0;
+  helpWidget.output("Logging to "+file.getName());
+  return logger;
+}
 
-  case CESState_SOF1_Found:
-    if (rxch==CES_CMDIF_PKT_START_2)
-      ecs_rx_state=CESState_SOF2_Found;
-    else
-      ecs_rx_state=CESState_Init;
-    break;
-
-  case CESState_SOF2_Found:
-    ecs_rx_state = CESState_PktLen_Found;
-    CES_Pkt_Len = (int) rxch;
-    CES_Pkt_Pos_Counter = CES_CMDIF_IND_LEN;
-    CES_Pkt_Data_Counter1 = 0;
-    CES_Pkt_Data_Counter2 = 0;
-    break;
-
-  case CESState_PktLen_Found:
-    CES_Pkt_Pos_Counter++;
-    if (CES_Pkt_Pos_Counter < CES_CMDIF_PKT_OVERHEAD)  //Read Header
-    {
-      if (CES_Pkt_Pos_Counter==CES_CMDIF_IND_LEN_MSB)
-        CES_Pkt_Len = (int) ((rxch<<8)|CES_Pkt_Len);
-      else if (CES_Pkt_Pos_Counter==CES_CMDIF_IND_PKTTYPE)
-        CES_Pkt_PktType = (int) rxch;
-    } else if ( (CES_Pkt_Pos_Counter >= CES_CMDIF_PKT_OVERHEAD) && (CES_Pkt_Pos_Counter < CES_CMDIF_PKT_OVERHEAD+CES_Pkt_Len+1) )  //Read Data
+void closeSession(SessionLogger logger)
+{
+  logger.stop();
+  IOException error = logger.lastError();
+  helpWidget.output("Logging to "+logger.currentFile().getName()+(error != null ? " failed: "+error.getMessage() : " stopped")
+    +" ("+logger.dropped()+" samples dropped)");
+}
+
+void startLogging(File file)
+{
+  stopLogging();
+  // keep individual files around 64 MB and start a new one every hour
+  SessionLogger logger = openSession(file, new SessionLogger.TextFormat(), 64L << 20, 60L * 60 * 1000);
+  if (logger == null)
+    return;
+  sessionLogger = logger;
+  logging = true;
+}
+
+void stopLogging()
+{
+  SessionLogger logger = sessionLogger;
+  if (logger == null)
+    return;
+  logging = false;
+  sessionLogger = null;
+  closeSession(logger);
+}
+
+void startRecording(File file)
+{
+  stopRecording();
+  // rotate at 1 GiB, 16-byte records: about 67M samples, 7.8 days at 100 sps
+  SessionLogger logger = openSession(file, new BinaryRecording.Writer(sampleRate), 1L << 30, 0);
+  if (logger == null)
+    return;
+  sessionRecorder = logger;
+}
+
+void stopRecording()
+{
+  SessionLogger logger = sessionRecorder;
+  if (logger == null)
+    return;
+  sessionRecorder = null;
+  closeSession(logger);
+}
+
+public void exit()
+{
+  if (connector != null)
+    connector.stop();
+  if (pipeline != null)
+    pipeline.stop();
+  if (dashboard != null)
+    dashboard.stop();
+  if (streamServer != null)
+    streamServer.stop();
+  metrics.stop();
+  stopLogging();
+  stopRecording();
+  super.exit();
+}
+
+/*********************************************** Opening Port Function ******************************************* **************/
+
+// Nothing here waits on a port: listing runs on its own thread and opening on
+// the SourceConnector's, draw() only picks up what they left behind
+void updateConnection()
+{
+  if (portSelected && !serialSet)
+    startSerial(comList);
+  File file = replayFile;
+  if (file != null)
+  {
+    replayFile = null;
+    connect(file.getName(), new SourceFactory(REPLAY_PORT, file), false);
+  }
+
+  String[] ports = foundPorts;
+  if (ports != null)
+  {
+    foundPorts = null;
+    portsListed = millis();
+    if (!Arrays.equals(ports, listedPorts))
     {
-      if (CES_Pkt_PktType == 2)
-      {
-        if (CES_Pkt_Data_Counter1 < 4)                           
-        {
-          DataRcvPacket1[CES_Pkt_Data_Counter1]= (char) (rxch);
-          CES_Pkt_Data_Counter1++;
-        } else
-        {
-          DataRcvPacket2[CES_Pkt_Data_Counter2]= (char) (rxch);
-          CES_Pkt_Data_Counter2++;
-        }
-      }
-    } else  //All header and data received
+      listedPorts = ports;
+      if (portListOpen)
+        setPorts(ports);
+    }
+  }
+
+  SourceConnector c = connector;
+  boolean connected = c != null && c.state() == SourceConnector.State.CONNECTED;
+  if (!connected && !listingPorts && millis() - portsListed > 5000)
+    startPortListing();
+  if (c != null)
+    showStatus(c.status());
+  else if (listingPorts && millis() - listStarted > 10000)
+    showStatus("Serial ports are not answering, SIMULATOR and REPLAY FILE still work");
+
+  // another port can be picked whenever the selected one isn't working
+  boolean busy = c == null ? portSelected : connected || c.state() == SourceConnector.State.CONNECTING;
+  if (busy == portListOpen)
+  {
+    portListOpen = !busy;
+    portList.setEnabled(portListOpen);
+    if (portListOpen)
     {
-      if (rxch==CES_CMDIF_PKT_STOP)
-      {     
-        int data1 = ecsParsePacket(DataRcvPacket1, DataRcvPacket1.length-1);
-        int data2 = ecsParsePacket(DataRcvPacket2, DataRcvPacket2.length-1);
-        receivedVoltage_RED = data1 * (0.0057220458984375) ;
-        receivedVoltage_IR = data2 * (0.0057220458984375) ;
-
-        time = time+0.1;
-        xdata[arrayIndex] = time;
-        
-        //receivedVoltage_RED = myFilter.filterUnitFloat((float)receivedVoltage_RED);
-        //receivedVoltage_IR = myFilter.filterUnitFloat((float)receivedVoltage_IR);
-        
-        
-        AvgYdata[arrayIndex] = (float)receivedVoltage_RED;
-        AvgZdata[arrayIndex] = (float)receivedVoltage_IR;
-        value1 = (float)( AvgYdata[arrayIndex] - averageValue(AvgYdata));
-        value2 = (float)( AvgZdata[arrayIndex] - averageValue(AvgZdata));
-        ydata[arrayIndex] = value1;
-        zdata[arrayIndex] = value2;
-
-        float RedDC = (float) averageValue(AvgYdata);
-        float IrDC = (float) averageValue(AvgZdata);
-
-        arrayIndex++;
-        if (arrayIndex == pSize)
-        {  
-          arrayIndex = 0;
-          time = 0;
-          RedAC = s.SPO2_Value(ydata);
-          IrAC = s.SPO2_Value(zdata);
-          float value = (RedAC/abs(RedDC))/(IrAC/abs(IrDC));
-
-          /********  Emprical Formalae  *********/
-          //float SpO2 = 10.0002*(value)-52.887*(value) + 26.817*(value) + 98.293;
-          //  float SpO2 =((0.81-0.18*(value))/(0.73+0.11*(value)));
-          float SpO2=110-25*(value);
-
-          SpO2 = (int)(SpO2 * 100);
-          SpO2 = SpO2/100;
-          oxygenSaturation.setText(SpO2+"");
-        }
-        if (startPlot) {
-        }
-        a = new BigDecimal(averageValue(ydata));
-        avg = a.setScale(5, BigDecimal.ROUND_HALF_EVEN); 
-        a = new BigDecimal(RMSValue(ydata));
-        rms = a.setScale(5, BigDecimal.ROUND_HALF_EVEN); 
-        a = new BigDecimal(max(ydata));
-        max = a.setScale(5, BigDecimal.ROUND_HALF_EVEN); 
-        a = new BigDecimal(min(ydata));
-        min = a.setScale(5, BigDecimal.ROUND_HALF_EVEN); 
-        msgBox.msg(min, max, avg, rms);
-
-        if (logging == true)
-        {
-          try {
-            date = new Date();
-            dateFormat = new SimpleDateFormat("HH:mm:ss");
-            output = new FileWriter(jFileChooser.getSelectedFile(), true);
-            bufferedWriter = new BufferedWriter(output);
-            //bufferedWriter.write(dateFormat.format(date)+" : " +receivedVoltage_RED+" , "+receivedVoltage_IR);
-            bufferedWriter.write(arrayIndex-1+" , "+value1 +" , "+value2);
-            bufferedWriter.newLine();
-            bufferedWriter.flush();
-            bufferedWriter.close();
-          }
-          catch(IOException e) {
-            println("It broke!!!");
-            e.printStackTrace();
-          }
-        }
-
-        maxAxis_red = max(ydata);
-        minAxis_red = min(ydata);
-        // println(maxAxis_red,minAxis_red);
-        maxAxis_ir = max(zdata);
-        minAxis_ir = min(zdata);
-
-        if (g.yMax != maxAxis_red)
-        {
-          g.yMax = (float)(maxAxis_red);
-        }
-        if (g.yMin != minAxis_red)
-        {
-          g.yMin = (float)(minAxis_red);
-        }
-
-        if (g1.yMax != maxAxis_ir)
-        {
-          g1.yMax = (float)(maxAxis_ir);
-        }
-        if (g1.yMin != minAxis_ir)
-        {
-          g1.yMin = (float)(minAxis_ir);
-        }
-
-        ecs_rx_state=CESState_Init;
-      } else
-      {
-        ecs_rx_state=CESState_Init;
-      }
+      portSelected = false;
+      serialSet = false;
+      setPorts(listedPorts);
     }
-    break;
+  }
+}
+
+void showStatus(String status)
+{
+  if (status.equals(shownStatus))
+    return;
+  shownStatus = status;
+  msgs = status;
+  helpWidget.output(status);
+}
+
+// Serial.list() can take seconds on a misbehaving USB driver, or never return
+void startPortListing()
+{
+  if (listingPorts)
+    return;
+  listingPorts = true;
+  listStarted = millis();
+  thread("listPorts");
+}
 
-  default:
-    break;
+public void listPorts()
+{
+  try
+  {
+    foundPorts = Serial.list();
+  }
+  catch (RuntimeException e)
+  {
+    foundPorts = new String[0];
+  }
+  finally
+  {
+    listingPorts = false;
   }
 }
 
-/*********************************************** Recursion Function To Reverse The data *********************************************************/
+void setPorts(String[] ports)
+{
+  String comList1[] = new String[ports.length+3];
+  comList1[0] = "SELECT THE PORT";
+  for (int i = 1; i <= ports.length; i++)
+  {
+    comList1[i] = ports[i-1];
+  }
+  comList1[ports.length+1] = SIMULATOR_PORT;
+  comList1[ports.length+2] = REPLAY_PORT;
+  comList = comList1;
+  portList.setItems(comList1, 0);
+}
 
-public int ecsParsePacket(char DataRcvPacket[], int n)
+void startSerial(String[] theport)
 {
-  if (n == 0)
-    return (int) DataRcvPacket[n]<<(n*8);
+  serialSet = true;
+  portListOpen = false;
+  portList.setEnabled(false);
+  if (selectedPort.equals(REPLAY_PORT))
+  {
+    SourceConnector old = connector;
+    connector = null;
+    if (old != null)
+      old.stop();
+    selectInput("Select a raw recording to replay:", "replayFileSelected");
+    return;
+  }
+  // only a real port is worth opening again
+  connect(selectedPort, new SourceFactory(selectedPort, null), !selectedPort.equals(SIMULATOR_PORT));
+}
+
+public void replayFileSelected(File selection)
+{
+  if (selection != null)
+    replayFile = selection;
   else
-    return (DataRcvPacket[n]<<(n*8))| ecsParsePacket(DataRcvPacket, n-1);
+  {
+    msgs = "No recording selected";
+    portSelected = false;
+  }
+}
+
+// A new selection starts a new session: history, link rates and device.*
+// metrics start over here, and only here, so reconnects of the same port
+// carry on with them
+void connect(String name, SourceFactory factory, boolean reconnect)
+{
+  SourceConnector old = connector;
+  if (old != null)
+    old.stop();
+  byteRate.clear();
+  frameRate.clear();
+  errorRate.clear();
+  dspRate.clear();
+  ratedPipeline = null;
+  bytesBefore = framesBefore = errorsBefore = processedBefore = 0;
+  redHistory = factory.redHistory;
+  irHistory = factory.irHistory;
+  metrics.remove("device.");
+  SourceConnector c = new SourceConnector(name, factory);
+  c.reconnect = reconnect;
+  metrics.remove("connector.");
+  c.instrument(metrics, "connector");
+  connector = c;
+  c.start();
+}
+
+// A fresh source for every attempt of the connector, all of them feeding the
+// selection's one history
+class SourceFactory implements SourceConnector.Factory
+{
+  String port;
+  File file;
+  MinMaxPyramid redHistory = new MinMaxPyramid();
+  MinMaxPyramid irHistory = new MinMaxPyramid();
+
+  SourceFactory(String port, File file)
+  {
+    this.port = port;
+    this.file = file;
+  }
+
+  public SampleSource create()
+  {
+    if (port.equals(SIMULATOR_PORT))
+      return new SyntheticPpgSource(sampleRate, 72, 97, 0.05);
+    if (port.equals(REPLAY_PORT))
+      return new ReplaySampleSource(file, 1, true);
+    return new SerialSampleSource(openview_oximeter.this, port, baudRate);
+  }
+
+  public SamplePipeline start(SampleSource source)
+  {
+    return startSource(source, redHistory, irHistory);
+  }
+}
+
+// Runs on the connector thread once source is open. After a reconnect the
+// connector has already waited for the previous pipeline's threads, so the
+// history only ever has one writer.
+SamplePipeline startSource(SampleSource source, MinMaxPyramid red, MinMaxPyramid ir)
+{
+  SignalProcessor processor = new SignalProcessor(pSize, sampleRate);
+  processor.setFilters(new BiquadFilterBank(2, sampleRate, filterOrder, filterLow, filterHigh, notchFreq));
+  SamplePipeline p = new SamplePipeline(source, processor, 8192, new SampleHandler(processor, red, ir));
+  p.instrument(metrics, "device");
+  pipeline = p;
+  p.start();
+  portName = "\\"+selectedPort+".txt";
+  return p;
+}
+
+/*********************************************** Getting Packet Data Function *********************************************************/
+
+// Runs on the DSP thread right after each sample went through the SignalProcessor.
+// Holds on to its own pipeline's processor and history rather than the globals,
+// which point at the next pipeline as soon as a reconnect has started it.
+class SampleHandler implements SampleSource.Sink
+{
+  SignalProcessor p;
+  MinMaxPyramid redHistory, irHistory;
+
+  SampleHandler(SignalProcessor p, MinMaxPyramid redHistory, MinMaxPyramid irHistory)
+  {
+    this.p = p;
+    this.redHistory = redHistory;
+    this.irHistory = irHistory;
+  }
+
+  public void onSample(long nanos, int red, int ir)
+  {
+    Serialevent = true;
+
+    redHistory.append(p.value1);
+    irHistory.append(p.value2);
+
+    SessionLogger recorder = sessionRecorder;
+    if (recorder != null)
+      recorder.log(nanos, red, ir);
+
+    StreamServer server = streamServer;
+    if (server != null)
+    {
+      server.vitals(p.spo2, p.bpm, p.quality.quality);
+      server.offer(nanos, red, ir);
+    }
+
+    SessionLogger logger = sessionLogger;
+    if (logging == true && logger != null)
+    {
+      logger.log(p.sampleIndex, p.value1, p.value2);
+    }
+  }
+}
+
+void setAxisRange(SignalFrame frame)
+{
+  maxAxis_red = frame.redMax;
+  minAxis_red = frame.redMin;
+  // println(maxAxis_red,minAxis_red);
+  maxAxis_ir = frame.irMax;
+  minAxis_ir = frame.irMin;
+
+  g.autoRange((float) minAxis_red, (float) maxAxis_red);
+  g1.autoRange((float) minAxis_ir, (float) maxAxis_ir);
 }
 
 // Use this method to add additional statements
 // to customise the GUI controls
 public void customGUI() {
-  comList = port.list();
-  String comList1[] = new String[comList.length+1];
-  comList1[0] = "SELECT THE PORT";
-  for (int i = 1; i <= comList.length; i++)
-  {
-    comList1[i] = comList[i-1];
-  }
+  setPorts(listedPorts);
+  startPortListing();
   start.setEnabled(false);
   oxygenSaturation.setVisible(false);
-  comList = comList1;
-  portList.setItems(comList1, 0);
+
+  heartRate = new GLabel(this, 600, 170, 300, 70);
+  heartRate.setText("--");
+  heartRate.setTextBold();
+  heartRate.setOpaque(false);
+  heartRate.setFont(new Font("Arial", Font.PLAIN, 40));
+  heartRate.setLocalColor(2, color(255, 255, 255));
+  heartRate.setVisible(false);
 
   oxygenSaturation.setFont(new Font("Arial", Font.PLAIN, 55));
   oxygenSaturation.setLocalColor(2, color(255, 255, 255));
@@ -413,26 +946,3 @@ void setChartSettings() {
   g1.yMax=0.001; 
   g1.yMin=0.005;
 }
-
-double averageValue(float dataArray[])
-{
-
-  float total = 0;
-  for (int i=0; i<dataArray.length; i++)
-  {
-    total = total + dataArray[i];
-  }
-
-  return total/dataArray.length;
-}
-
-double RMSValue(float dataArray[])
-{
-  float total = 0;
-  for (int i=0; i<dataArray.length; i++)
-  {
-    total = (float)(total + Math.pow(dataArray[i], 2));
-  }
-  total /= dataArray.length;
-  return Math.sqrt(total);
-}
\ No newline at end of file
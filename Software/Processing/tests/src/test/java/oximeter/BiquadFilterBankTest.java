@@ -0,0 +1,50 @@
+package oximeter;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/*
+ * Which mains notch the bank keeps, and that the one at Nyquist (50 Hz mains
+ * at the default 100 sps) leaves the pulse band alone.
+ */
+public class BiquadFilterBankTest
+{
+  // amplitude of a sine at hz after the filters have settled
+  private static double gain(BiquadFilterBank bank, double hz)
+  {
+    double peak = 0;
+    for (int n = 0; n < 4000; n++)
+    {
+      float y = bank.process(0, (float) Math.sin(2 * Math.PI * hz * n / bank.sampleRate));
+      if (n >= 3000)
+        peak = Math.max(peak, Math.abs(y));
+    }
+    return peak;
+  }
+
+  @Test
+  public void keepsANotchAtNyquist()
+  {
+    assertEquals(50, new BiquadFilterBank(2, 100, 2, 0.5f, 5, 50).notch, 0);
+    assertEquals(50, new BiquadFilterBank(2, 200, 2, 0.5f, 5, 50).notch, 0);
+  }
+
+  @Test
+  public void dropsANotchAboveNyquist()
+  {
+    assertEquals(0, new BiquadFilterBank(2, 100, 2, 0.5f, 5, 60).notch, 0);
+    assertEquals(0, new BiquadFilterBank(2, 100, 2, 0.5f, 5, 0).notch, 0);
+  }
+
+  @Test
+  public void nyquistNotchLeavesThePulseBandAlone()
+  {
+    for (double hz : new double[] { 1, 2, 3 })
+    {
+      double with = gain(new BiquadFilterBank(1, 100, 2, 0.5f, 5, 50), hz);
+      double without = gain(new BiquadFilterBank(1, 100, 2, 0.5f, 5, 0), hz);
+      assertEquals("at " + hz + " Hz", without, with, 0.01 * without);
+    }
+  }
+}
@@ -0,0 +1,281 @@
+package oximeter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Byte streams laid out the way Continuos.ino writes them:
+ *
+ *   0x0A 0xFA | 0x08 0x00 | 0x02 | RED (4 bytes LE) | IR (4 bytes LE) | 0x00 | 0x0B
+ *
+ * Every stream is fed in one piece, split in two at every possible point,
+ * and one byte at a time, and all of them have to decode the same.
+ */
+public class CesPacketDecoderTest
+{
+  private static final int MAX_PAYLOAD = 64;
+
+  private final List<int[]> packets = new ArrayList<int[]>();
+  private CesPacketDecoder decoder;
+
+  @Before
+  public void setUp()
+  {
+    decoder = newDecoder();
+  }
+
+  private CesPacketDecoder newDecoder()
+  {
+    packets.clear();
+    return new CesPacketDecoder(MAX_PAYLOAD, new CesPacketDecoder.PacketListener()
+    {
+      public void onPacket(int pktType, int[] words, int wordCount)
+      {
+        int[] p = new int[wordCount + 1];
+        p[0] = pktType;
+        System.arraycopy(words, 0, p, 1, wordCount);
+        packets.add(p);
+      }
+    });
+  }
+
+  /************** Streams **********************/
+
+  // A data frame exactly as Continuos.ino builds it in DataPacketHeader[]
+  private static byte[] dataFrame(int red, int ir)
+  {
+    return new byte[] {
+      0x0A, (byte) 0xFA, 0x08, 0x00, 0x02,
+      (byte) red, (byte) (red >> 8), (byte) (red >> 16), (byte) (red >> 24),
+      (byte) ir, (byte) (ir >> 8), (byte) (ir >> 16), (byte) (ir >> 24),
+      0x00, 0x0B
+    };
+  }
+
+  // Any frame, with a length field that need not match the payload
+  private static byte[] frame(int len, int type, byte[] payload, int stop)
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(0x0A);
+    out.write(0xFA);
+    out.write(len & 0xFF);
+    out.write((len >> 8) & 0xFF);
+    out.write(type);
+    out.write(payload, 0, payload.length);
+    out.write(0x00);
+    out.write(stop);
+    return out.toByteArray();
+  }
+
+  private static byte[] concat(byte[]... parts)
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] p : parts)
+      out.write(p, 0, p.length);
+    return out.toByteArray();
+  }
+
+  private static byte[] bytes(int... values)
+  {
+    byte[] b = new byte[values.length];
+    for (int i = 0; i < values.length; i++)
+      b[i] = (byte) values[i];
+    return b;
+  }
+
+  private static int[] data(int red, int ir)
+  {
+    return new int[] { CesPacketDecoder.CES_CMDIF_TYPE_DATA, red, ir };
+  }
+
+  /************** Feeding **********************/
+
+  private interface Check
+  {
+    void verify(String how);
+  }
+
+  // Decodes stream whole, split at every point and byte by byte, running
+  // check on a fresh decoder each time
+  private void feedEveryWay(byte[] stream, Check check)
+  {
+    decoder = newDecoder();
+    decoder.process(stream, 0, stream.length);
+    check.verify("whole");
+
+    for (int split = 0; split <= stream.length; split++)
+    {
+      decoder = newDecoder();
+      decoder.process(stream, 0, split);
+      decoder.process(stream, split, stream.length - split);
+      check.verify("split at " + split);
+    }
+
+    decoder = newDecoder();
+    for (byte b : stream)
+      decoder.process(b & 0xFF);
+    check.verify("byte by byte");
+  }
+
+  private void assertPackets(String how, int[]... expected)
+  {
+    assertEquals(how + ": packet count", expected.length, packets.size());
+    for (int i = 0; i < expected.length; i++)
+      assertArrayEquals(how + ": packet " + i, expected[i], packets.get(i));
+  }
+
+  private void assertCounters(String how, long framesOk, long badStop, long lengthErrors, long resyncBytes, long bytes)
+  {
+    assertEquals(how + ": framesOk", framesOk, decoder.framesOk());
+    assertEquals(how + ": badStop", badStop, decoder.badStop());
+    assertEquals(how + ": lengthErrors", lengthErrors, decoder.lengthErrors());
+    assertEquals(how + ": resyncBytes", resyncBytes, decoder.resyncBytes());
+    assertEquals(how + ": bytes", bytes, decoder.bytes());
+  }
+
+  /************** Tests **********************/
+
+  @Test
+  public void decodesGoodFramesAtEveryChunkBoundary()
+  {
+    // 18 bit ADC counts as the MAX30102 gives them, plus values that need
+    // every byte and the sign bit
+    final byte[] stream = concat(dataFrame(131071, 262143), dataFrame(0x12345678, 0x00ABCDEF), dataFrame(-2, 0));
+    feedEveryWay(stream, new Check()
+    {
+      public void verify(String how)
+      {
+        assertPackets(how, data(131071, 262143), data(0x12345678, 0x00ABCDEF), data(-2, 0));
+        assertCounters(how, 3, 0, 0, 0, stream.length);
+      }
+    });
+  }
+
+  @Test
+  public void dropsFrameWithWrongStopByte()
+  {
+    final byte[] bad = frame(8, CesPacketDecoder.CES_CMDIF_TYPE_DATA, bytes(1, 0, 0, 0, 2, 0, 0, 0), 0x0C);
+    final byte[] stream = concat(bad, dataFrame(100, 200));
+    feedEveryWay(stream, new Check()
+    {
+      public void verify(String how)
+      {
+        assertPackets(how, data(100, 200));
+        assertCounters(how, 1, 1, 0, 0, stream.length);
+      }
+    });
+  }
+
+  @Test
+  public void dropsFrameWithOversizedLength()
+  {
+    // 0x0100 bytes can't fit the 64 byte buffer; the decoder gives up after
+    // the length MSB and skips the other 11 bytes of the frame
+    final byte[] bad = frame(0x0100, CesPacketDecoder.CES_CMDIF_TYPE_DATA, bytes(1, 0, 0, 0, 2, 0, 0, 0), 0x0B);
+    final byte[] stream = concat(bad, dataFrame(100, 200));
+    feedEveryWay(stream, new Check()
+    {
+      public void verify(String how)
+      {
+        assertPackets(how, data(100, 200));
+        assertCounters(how, 1, 0, 1, bad.length - 4, stream.length);
+      }
+    });
+  }
+
+  @Test
+  public void dropsDataFrameWhoseLengthIsNotEight()
+  {
+    // the type byte gives it away, the 6 bytes after it are skipped
+    final byte[] bad = frame(4, CesPacketDecoder.CES_CMDIF_TYPE_DATA, bytes(1, 0, 0, 0), 0x0B);
+    final byte[] stream = concat(bad, dataFrame(100, 200));
+    feedEveryWay(stream, new Check()
+    {
+      public void verify(String how)
+      {
+        assertPackets(how, data(100, 200));
+        assertCounters(how, 1, 0, 1, bad.length - 5, stream.length);
+      }
+    });
+  }
+
+  @Test
+  public void passesOtherPacketTypesWithTheirOwnLength()
+  {
+    final byte[] stream = concat(frame(4, 0x01, bytes(0x78, 0x56, 0x34, 0x12), 0x0B), dataFrame(100, 200));
+    feedEveryWay(stream, new Check()
+    {
+      public void verify(String how)
+      {
+        assertPackets(how, new int[] { 0x01, 0x12345678 }, data(100, 200));
+        assertCounters(how, 2, 0, 0, 0, stream.length);
+      }
+    });
+  }
+
+  @Test
+  public void skipsGarbageBeforePreamble()
+  {
+    // no 0x0A in the garbage, so every byte of it is skipped
+    final byte[] garbage = bytes(0x00, 0xFF, 0xFA, 0x0B, 0x55, 0x02, 0x08);
+    final byte[] stream = concat(garbage, dataFrame(100, 200));
+    feedEveryWay(stream, new Check()
+    {
+      public void verify(String how)
+      {
+        assertPackets(how, data(100, 200));
+        assertCounters(how, 1, 0, 0, garbage.length, stream.length);
+      }
+    });
+  }
+
+  @Test
+  public void keepsLastStartByteOfARepeatedRun()
+  {
+    // 0x0A 0x0A 0x0A 0xFA: the last 0x0A starts the frame, the two before it are skipped
+    final byte[] stream = concat(bytes(0x0A, 0x0A), dataFrame(100, 200));
+    feedEveryWay(stream, new Check()
+    {
+      public void verify(String how)
+      {
+        assertPackets(how, data(100, 200));
+        assertCounters(how, 1, 0, 0, 2, stream.length);
+      }
+    });
+  }
+
+  @Test
+  public void countsEveryFramingProblemInOneStream()
+  {
+    final byte[] garbage = bytes(0x33, 0x0A, 0x44);                  // a lone 0x0A that isn't followed by 0xFA
+    final byte[] badStop = frame(8, CesPacketDecoder.CES_CMDIF_TYPE_DATA, bytes(1, 0, 0, 0, 2, 0, 0, 0), 0x00);
+    final byte[] oversized = frame(0x0200, CesPacketDecoder.CES_CMDIF_TYPE_DATA, bytes(1, 2, 3, 4), 0x0B);
+    final byte[] shortData = frame(4, CesPacketDecoder.CES_CMDIF_TYPE_DATA, bytes(1, 2, 3, 4), 0x0B);
+    final byte[] stream = concat(dataFrame(1, 2), garbage, badStop, dataFrame(3, 4), oversized, bytes(0x0A, 0x0A),
+      dataFrame(5, 6), shortData, dataFrame(7, 8));
+    final long resync = garbage.length + (oversized.length - 4) + 2 + (shortData.length - 5);
+    feedEveryWay(stream, new Check()
+    {
+      public void verify(String how)
+      {
+        assertPackets(how, data(1, 2), data(3, 4), data(5, 6), data(7, 8));
+        assertCounters(how, 4, 1, 2, resync, stream.length);
+      }
+    });
+  }
+
+  @Test
+  public void readsLittleEndianWords()
+  {
+    byte[] b = bytes(0xEF, 0xBE, 0xAD, 0xDE, 0x01);
+    assertEquals(0xDEADBEEF, CesPacketDecoder.readIntLE(b, 0, 4));
+    assertEquals(0x01DEADBE, CesPacketDecoder.readIntLE(b, 1, 4));
+    assertEquals(0xBEEF, CesPacketDecoder.readIntLE(b, 0, 2));
+  }
+}
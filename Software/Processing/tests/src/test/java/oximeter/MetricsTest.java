@@ -0,0 +1,39 @@
+package oximeter;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import org.junit.Test;
+
+/*
+ * The MBean as a JMX client sees it: there are no operations, and asking for
+ * one fails the way the JMX spec says it should.
+ */
+public class MetricsTest
+{
+  @Test
+  public void invokingAnOperationIsAReflectionException() throws Exception
+  {
+    Metrics metrics = new Metrics();
+    metrics.register("oximeter.test:type=Metrics");
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("oximeter.test:type=Metrics");
+    try
+    {
+      server.invoke(name, "reset", new Object[0], new String[0]);
+      fail("invoke returned");
+    }
+    catch (ReflectionException e)
+    {
+      assertTrue(e.getTargetException() instanceof NoSuchMethodException);
+    }
+    finally
+    {
+      server.unregisterMBean(name);
+    }
+  }
+}
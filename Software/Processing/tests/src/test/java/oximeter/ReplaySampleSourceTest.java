@@ -0,0 +1,78 @@
+package oximeter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * Playback of a recording: everything in order at full speed, and at speed 1
+ * never more than is due by the clock.
+ */
+public class ReplaySampleSourceTest
+{
+  private static final int SAMPLES = 10000;
+  private static final long PERIOD = 10000000L;   // 100 sps
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File record() throws Exception
+  {
+    File file = folder.newFile("session.pcox");
+    BinaryRecording.Writer writer = new BinaryRecording.Writer(100);
+    writer.open(file);
+    for (int i = 0; i < SAMPLES; i++)
+      writer.write(i * PERIOD, i, -i);
+    writer.close();
+    return file;
+  }
+
+  private static class Collector implements SampleSource.Sink
+  {
+    int count;
+    boolean inOrder = true;
+
+    public void onSample(long nanos, int red, int ir)
+    {
+      inOrder &= red == count && ir == -count;
+      count++;
+    }
+  }
+
+  @Test
+  public void playsEverythingInOrderAtMaxSpeed() throws Exception
+  {
+    ReplaySampleSource source = new ReplaySampleSource(record(), ReplaySampleSource.MAX_SPEED, false);
+    source.open();
+    Collector sink = new Collector();
+    while (source.poll(sink) != SampleSource.END_OF_STREAM)
+    {
+    }
+    source.close();
+    assertEquals(SAMPLES, sink.count);
+    assertTrue(sink.inOrder);
+  }
+
+  @Test
+  public void deliversOnlyWhatIsDueAtRealSpeed() throws Exception
+  {
+    ReplaySampleSource source = new ReplaySampleSource(record(), 1, false);
+    long start = System.nanoTime();
+    source.open();
+    Collector sink = new Collector();
+    while (System.nanoTime() - start < 200000000L)
+    {
+      source.poll(sink);
+      long elapsed = System.nanoTime() - start;
+      assertTrue("ahead of the clock: " + sink.count, (sink.count - 1) * PERIOD <= elapsed);
+      Thread.sleep(1);
+    }
+    source.close();
+    assertTrue("kept up, got " + sink.count, sink.count >= 10);
+    assertTrue(sink.inOrder);
+  }
+}
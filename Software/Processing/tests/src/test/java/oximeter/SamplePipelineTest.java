@@ -0,0 +1,42 @@
+package oximeter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/*
+ * A pipeline stepped by hand (pollSource / processPending, no threads), the
+ * way DeviceScheduler drives one.
+ */
+public class SamplePipelineTest
+{
+  private static SamplePipeline pipeline(SampleSource source, Metrics metrics) throws Exception
+  {
+    source.open();
+    SamplePipeline p = new SamplePipeline(source, new SignalProcessor(400, 100), 8192, null);
+    if (metrics != null)
+      p.instrument(metrics, "device");
+    return p;
+  }
+
+  @Test
+  public void recordsBeatToBpmLatency() throws Exception
+  {
+    SyntheticPpgSource source = new SyntheticPpgSource(100, 72, 97, 0.05f);
+    source.realtime = false;
+    Metrics metrics = new Metrics();
+    SamplePipeline p = pipeline(source, metrics);
+    while (p.processed() < 30 * 100)
+    {
+      p.pollSource();
+      p.processPending();
+    }
+
+    metrics.tick();
+    Metrics.Histogram beat = metrics.histogram("device.latency.beat.nanos");
+    assertTrue("beats accepted", p.processor.beats > 20);
+    assertEquals("one value per accepted beat", p.processor.beats, beat.count);
+    assertTrue(beat.maxEver() > 0);
+  }
+}
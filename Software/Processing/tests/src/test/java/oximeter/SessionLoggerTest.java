@@ -0,0 +1,153 @@
+package oximeter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/*
+ * A writer that fails part way through: the format still gets closed, the
+ * error is kept for the sketch to show, and what was queued but never
+ * written is counted as dropped along with whatever is logged afterwards. Raw counts reach a recording exactly, filtered values
+ * reach the text log as the floats they were.
+ */
+public class SessionLoggerTest
+{
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static class FailingFormat implements SessionLogger.Format
+  {
+    final int failAfter;
+    final CountDownLatch gate = new CountDownLatch(1);   // holds the first write until released
+    volatile int written;
+    volatile boolean closed;
+
+    FailingFormat(int failAfter)
+    {
+      this.failAfter = failAfter;
+    }
+
+    public void open(File file)
+    {
+    }
+
+    public void write(long stamp, int a, int b) throws IOException
+    {
+      try
+      {
+        gate.await();
+      }
+      catch (InterruptedException e)
+      {
+        throw new InterruptedIOException();
+      }
+      if (written == failAfter)
+        throw new IOException("No space left on device");
+      written++;
+    }
+
+    public void flush()
+    {
+    }
+
+    public void close()
+    {
+      closed = true;
+    }
+
+    public long bytesWritten()
+    {
+      return written * 16L;
+    }
+  }
+
+  @Test
+  public void countsDropsAndClosesAfterWriteError() throws Exception
+  {
+    FailingFormat format = new FailingFormat(100);
+    SessionLogger logger = new SessionLogger(new File("unused.pcox"), format, 1024);
+    logger.start();
+    // everything is queued before the first write, so 100 are written and
+    // the other 100 are left in the batch or the ring when it fails
+    for (int i = 0; i < 200; i++)
+      assertTrue(logger.log(i, 1, 2));
+    format.gate.countDown();
+
+    long deadline = System.currentTimeMillis() + 5000;
+    while (logger.lastError() == null && System.currentTimeMillis() < deadline)
+      Thread.sleep(5);
+    assertNotNull(logger.lastError());
+    while (!format.closed && System.currentTimeMillis() < deadline)
+      Thread.sleep(5);
+    assertTrue("format closed", format.closed);
+    assertEquals(100, format.written);
+    assertEquals("unwritten samples count as dropped", 100, logger.dropped());
+    assertEquals(0, logger.backlog());
+
+    for (int i = 0; i < 50; i++)
+      assertFalse(logger.log(i, 1, 2));
+    assertEquals(150, logger.dropped());
+    logger.stop();
+  }
+
+  @Test
+  public void writesEverythingAndClosesOnStop() throws Exception
+  {
+    FailingFormat format = new FailingFormat(Integer.MAX_VALUE);
+    format.gate.countDown();
+    SessionLogger logger = new SessionLogger(new File("unused.pcox"), format, 1024);
+    logger.start();
+    for (int i = 0; i < 500; i++)
+      assertTrue(logger.log(i, 1, 2));
+    logger.stop();
+    assertEquals(500, format.written);
+    assertTrue(format.closed);
+    assertEquals(0, logger.dropped());
+  }
+
+  @Test
+  public void recordsCountsPastFloatPrecision() throws Exception
+  {
+    int[] counts = { (1 << 24) + 1, (1 << 30) + 3, Integer.MAX_VALUE, -(1 << 24) - 1 };
+    File file = folder.newFile("session.pcox");
+    SessionLogger logger = new SessionLogger(file, new BinaryRecording.Writer(100), 1024);
+    logger.start();
+    for (int i = 0; i < counts.length; i++)
+      assertTrue(logger.log(i, counts[i], counts[counts.length - 1 - i]));
+    logger.stop();
+
+    BinaryRecording.Reader reader = new BinaryRecording.Reader(file);
+    assertEquals(counts.length, reader.sampleCount());
+    for (int i = 0; i < counts.length; i++)
+    {
+      assertEquals(counts[i], reader.red(i));
+      assertEquals(counts[counts.length - 1 - i], reader.ir(i));
+    }
+    reader.close();
+  }
+
+  @Test
+  public void textLogKeepsFloatValues() throws Exception
+  {
+    File file = folder.newFile("session.txt");
+    SessionLogger logger = new SessionLogger(file, new SessionLogger.TextFormat(), 1024);
+    logger.start();
+    assertTrue(logger.log(7, 0.125f, -1.5e-3f));
+    logger.stop();
+
+    BufferedReader in = new BufferedReader(new FileReader(file));
+    assertEquals("7 , 0.125 , -0.0015", in.readLine());
+    in.close();
+  }
+}
@@ -0,0 +1,63 @@
+package oximeter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/*
+ * The SpO2 reading follows the signal: it appears on a clean pulse, is
+ * withdrawn once the finger is off for longer than spo2HoldSeconds, and
+ * comes back with the pulse.
+ */
+public class SignalProcessorTest
+{
+  private static final float RATE = 100;
+
+  private final SignalProcessor processor = new SignalProcessor(400, RATE);
+
+  private void pulse(float seconds) throws Exception
+  {
+    SyntheticPpgSource source = new SyntheticPpgSource(RATE, 72, 97, 0.05f);
+    source.realtime = false;
+    source.open();
+    final long target = processor.samples + (long) (seconds * RATE);
+    SampleSource.Sink sink = new SampleSource.Sink()
+    {
+      public void onSample(long nanos, int red, int ir)
+      {
+        if (processor.samples < target)
+          processor.process(nanos, red, ir);
+      }
+    };
+    while (processor.samples < target)
+      source.poll(sink);
+  }
+
+  // no finger: the photodiode sees a little ambient light and nothing else
+  private void fingerOff(float seconds)
+  {
+    for (int i = 0; i < seconds * RATE; i++)
+      processor.process(System.nanoTime(), 200, 200);
+  }
+
+  @Test
+  public void spo2ExpiresWithoutAcceptedEstimates() throws Exception
+  {
+    pulse(20);
+    assertTrue("reading on a clean pulse, got " + processor.spo2, processor.spo2 > 90 && processor.spo2 <= 100);
+
+    int count = processor.spo2Count;
+    int rejected = processor.spo2Rejected;
+    fingerOff(processor.spo2HoldSeconds / 2);
+    assertTrue("still held", processor.spo2 > 0);
+
+    fingerOff(processor.spo2HoldSeconds);
+    assertTrue("estimates were rejected", processor.spo2Rejected > rejected);
+    assertEquals("withdrawn", 0, processor.spo2, 0);
+    assertTrue("withdrawal is an update", processor.spo2Count > count);
+
+    pulse(20);
+    assertTrue("back on a clean pulse, got " + processor.spo2, processor.spo2 > 90 && processor.spo2 <= 100);
+  }
+}
@@ -0,0 +1,112 @@
+package oximeter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+/*
+ * A lost pipeline whose DSP thread is slow to finish: the connector keeps
+ * waiting for it instead of starting the next pipeline on the same history.
+ */
+public class SourceConnectorTest
+{
+  // a few samples, then the end of the stream
+  private static class ShortSource implements SampleSource
+  {
+    private int left = 10;
+
+    public void open()
+    {
+    }
+
+    public int poll(Sink sink)
+    {
+      if (left == 0)
+        return END_OF_STREAM;
+      left--;
+      sink.onSample(System.nanoTime(), 1000, 2000);
+      return 1;
+    }
+
+    public void close()
+    {
+    }
+
+    public String describe()
+    {
+      return "short";
+    }
+
+    public CesPacketDecoder decoder()
+    {
+      return null;
+    }
+  }
+
+  // holds the DSP thread of the first pipeline until released, interrupts or not
+  private static class StuckTap implements SampleSource.Sink
+  {
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch stuck = new CountDownLatch(1);
+
+    public void onSample(long nanos, int red, int ir)
+    {
+      stuck.countDown();
+      while (release.getCount() > 0)
+      {
+        try
+        {
+          release.await();
+        }
+        catch (InterruptedException e)
+        {
+          // keep holding
+        }
+      }
+    }
+  }
+
+  private static boolean waitFor(AtomicInteger value, int expected, long millis) throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + millis;
+    while (value.get() != expected && System.currentTimeMillis() < deadline)
+      Thread.sleep(5);
+    return value.get() == expected;
+  }
+
+  @Test
+  public void waitsForTheOldPipelineBeforeReconnecting() throws Exception
+  {
+    final StuckTap tap = new StuckTap();
+    final AtomicInteger starts = new AtomicInteger();
+    SourceConnector connector = new SourceConnector("short", new SourceConnector.Factory()
+    {
+      public SampleSource create()
+      {
+        return new ShortSource();
+      }
+
+      public SamplePipeline start(SampleSource source)
+      {
+        SamplePipeline p = new SamplePipeline(source, new SignalProcessor(400, 100), 1024,
+          starts.incrementAndGet() == 1 ? tap : null);
+        p.start();
+        return p;
+      }
+    });
+    connector.retryMillis = 10;
+    connector.start();
+
+    tap.stuck.await();
+    assertTrue(!waitFor(starts, 2, 3000));
+    assertEquals(SourceConnector.State.RETRYING, connector.state());
+    assertTrue(connector.status(), connector.status().contains("waiting"));
+
+    tap.release.countDown();
+    assertTrue("reconnected once the old pipeline stopped", waitFor(starts, 2, 3000));
+    connector.stop();
+  }
+}
@@ -0,0 +1,189 @@
+package oximeter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Who the server sends to: only loopback by default, only UDP peers that
+ * asked with the subscribe request, and never more than the limits.
+ */
+public class StreamServerTest
+{
+  private StreamServer server;
+  private final InetAddress loopback = InetAddress.getLoopbackAddress();
+
+  @Before
+  public void setUp() throws Exception
+  {
+    ServerSocket probe = new ServerSocket(0);
+    int port = probe.getLocalPort();
+    probe.close();
+    server = new StreamServer(port, 100, 1024);
+    server.maxClients = 1;
+    server.maxSubscribers = 1;
+    server.start();
+  }
+
+  @After
+  public void tearDown()
+  {
+    server.stop();
+  }
+
+  private DatagramSocket udp() throws Exception
+  {
+    DatagramSocket socket = new DatagramSocket(0, loopback);
+    socket.setSoTimeout(500);
+    return socket;
+  }
+
+  private void send(DatagramSocket socket, byte[] data) throws Exception
+  {
+    socket.send(new DatagramPacket(data, data.length, loopback, server.port));
+  }
+
+  private void feed()
+  {
+    for (int i = 0; i < 10; i++)
+      server.offer(System.nanoTime(), 1000 + i, 2000 + i);
+  }
+
+  private boolean receivesFrame(DatagramSocket socket) throws Exception
+  {
+    byte[] buf = new byte[2048];
+    DatagramPacket packet = new DatagramPacket(buf, buf.length);
+    long deadline = System.currentTimeMillis() + 1000;
+    while (System.currentTimeMillis() < deadline)
+    {
+      feed();
+      try
+      {
+        socket.receive(packet);
+        return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).getInt(0) == StreamServer.MAGIC;
+      }
+      catch (SocketTimeoutException e)
+      {
+        // nothing yet
+      }
+    }
+    return false;
+  }
+
+  private void waitFor(String what, long expected, Counter counter) throws Exception
+  {
+    long deadline = System.currentTimeMillis() + 2000;
+    while (counter.value() != expected && System.currentTimeMillis() < deadline)
+      Thread.sleep(5);
+    assertEquals(what, expected, counter.value());
+  }
+
+  private interface Counter
+  {
+    long value();
+  }
+
+  @Test
+  public void listensOnLoopbackByDefault()
+  {
+    assertTrue(new StreamServer(1, 100, 16).bindAddress.isLoopbackAddress());
+  }
+
+  @Test
+  public void ignoresDatagramsThatAreNotARequest() throws Exception
+  {
+    DatagramSocket socket = udp();
+    send(socket, "hello".getBytes("US-ASCII"));
+    send(socket, "PCOS SUBSCRIBE please".getBytes("US-ASCII"));
+    waitFor("ignored", 2, new Counter()
+    {
+      public long value()
+      {
+        return server.ignored();
+      }
+    });
+    assertEquals(0, server.subscribers());
+    assertTrue("no frames without a subscription", !receivesFrame(socket));
+    socket.close();
+  }
+
+  @Test
+  public void subscribesOnRequestAndLeavesOnBye() throws Exception
+  {
+    DatagramSocket socket = udp();
+    send(socket, StreamServer.SUBSCRIBE);
+    assertTrue(receivesFrame(socket));
+    assertEquals(1, server.subscribers());
+
+    send(socket, StreamServer.UNSUBSCRIBE);
+    waitFor("subscribers", 0, new Counter()
+    {
+      public long value()
+      {
+        return server.subscribers();
+      }
+    });
+    socket.close();
+  }
+
+  @Test
+  public void refusesSubscribersPastTheLimit() throws Exception
+  {
+    DatagramSocket first = udp(), second = udp();
+    send(first, StreamServer.SUBSCRIBE);
+    assertTrue(receivesFrame(first));
+    send(second, StreamServer.SUBSCRIBE);
+    waitFor("refused", 1, new Counter()
+    {
+      public long value()
+      {
+        return server.refused();
+      }
+    });
+    assertEquals(1, server.subscribers());
+    assertTrue("no frames past the limit", !receivesFrame(second));
+    first.close();
+    second.close();
+  }
+
+  @Test
+  public void closesClientsPastTheLimit() throws Exception
+  {
+    Socket first = new Socket(loopback, server.port);
+    waitFor("clients", 1, new Counter()
+    {
+      public long value()
+      {
+        return server.clients();
+      }
+    });
+    Socket second = new Socket(loopback, server.port);
+    second.setSoTimeout(2000);
+    InputStream in = second.getInputStream();
+    try
+    {
+      assertEquals("closed by the server", -1, in.read());
+    }
+    catch (SocketTimeoutException e)
+    {
+      fail("second client was kept");
+    }
+    assertEquals(1, server.clients());
+    assertEquals(1, server.refused());
+    first.close();
+    second.close();
+  }
+}